@@ -0,0 +1,129 @@
+package convert.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.Random;
+
+/**<p>
+ * 生成基准测试用的乱码数据。先生成原始文本，再按编码链反向制造乱码：
+ * 原始文本按originCode编码，按middleCode解码，再按inputCode编码，即转换程序的输入。</p><p>
+ * 三种输入：ascii为纯ASCII文本；cjk为没有任何ASCII字符的连续汉字；
+ * tsv为与test_resources中的示例文件相同格式的商品表格，汉字、数字和制表符混合。
+ * 汉字只使用originCode能够编码的常用汉字，所以每种编码链得到的都是密集的乱码。
+ * 使用固定的随机数种子，每次生成的数据相同。</p>
+ * @author 何晶   He, Jing
+ */
+public final class Corpus {
+	public static final String ASCII = "ascii";
+	public static final String CJK = "cjk";
+	public static final String TSV = "tsv";
+	//示例文件，打包在benchmarks.jar中
+	private static final String SAMPLE = "/MessyCodeGBK-Windows1252-UTF.txt";
+
+	private Corpus() {
+	}
+
+	/**
+	 * @param mix		&nbsp;ascii、cjk或tsv
+	 * @param chain		&nbsp;inputCode, middleCode, originCode, outputCode
+	 * @param size		&nbsp;乱码的大约字节数，结果不超过该大小，且以完整的一行(cjk为完整的字符)结束
+	 * @return	&nbsp;以inputCode编码的乱码
+	 */
+	public static byte[] mojibake(String mix, String[] chain, int size) {
+		Charset input = Charset.forName(chain[0]);
+		Charset middle = Charset.forName(chain[1]);
+		Charset origin = Charset.forName(chain[2]);
+		Random random = new Random(42);
+		char[] pool = commonChars(origin);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size + 256);
+		if (TSV.equals(mix)) {
+			append(out, header(chain), input, middle, origin);
+		}
+		while (true) {
+			String unit;
+			if (ASCII.equals(mix)) {
+				unit = asciiLine(random);
+			} else if (CJK.equals(mix)) {
+				unit = String.valueOf(pool[random.nextInt(pool.length)]);
+			} else if (TSV.equals(mix)) {
+				unit = tsvLine(random, pool);
+			} else {
+				throw new IllegalArgumentException("Unknown input mix: " + mix);
+			}
+			byte[] b = encode(unit, input, middle, origin);
+			if (out.size() + b.length > size) break;
+			out.write(b, 0, b.length);
+		}
+		return out.toByteArray();
+	}
+
+	/** 把原始文本制造成乱码。 */
+	public static byte[] encode(String text, Charset input, Charset middle, Charset origin) {
+		return new String(text.getBytes(origin), middle).getBytes(input);
+	}
+
+	private static void append(ByteArrayOutputStream out, String text, Charset input, Charset middle,
+			Charset origin) {
+		byte[] b = encode(text, input, middle, origin);
+		out.write(b, 0, b.length);
+	}
+
+	/** 示例文件的表头，即修复后的第一行。 */
+	private static String header(String[] chain) {
+		try (InputStream in = Corpus.class.getResourceAsStream(SAMPLE)) {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			int b;
+			while ((b = in.read()) != -1 && b != '\n') {
+				buf.write(b);
+			}
+			//the sample is GBK -> Windows-1252 -> UTF-8 mojibake
+			String mojibake = new String(buf.toByteArray(), "UTF-8");
+			return new String(mojibake.getBytes("Windows-1252"), "GBK") + "\n";
+		} catch (IOException | NullPointerException e) {
+			throw new IllegalStateException("Cannot read " + SAMPLE, e);
+		}
+	}
+
+	private static String asciiLine(Random random) {
+		StringBuilder sb = new StringBuilder();
+		int words = 5 + random.nextInt(10);
+		for (int w = 0; w < words; w++) {
+			if (w > 0) sb.append(' ');
+			int len = 2 + random.nextInt(8);
+			for (int i = 0; i < len; i++) {
+				sb.append((char) ('a' + random.nextInt(26)));
+			}
+		}
+		return sb.append('\n').toString();
+	}
+
+	//43085	湾仔码头大白菜猪肉水饺 720克/袋	720克/袋	6	0	0	0	0	0	0	5	42	715	2
+	private static String tsvLine(Random random, char[] pool) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(10000 + random.nextInt(90000)).append('\t');
+		int len = 4 + random.nextInt(8);
+		for (int i = 0; i < len; i++) {
+			sb.append(pool[random.nextInt(pool.length)]);
+		}
+		String unit = String.valueOf(pool[random.nextInt(pool.length)]);
+		String spec = (100 + random.nextInt(900)) + unit + "/" + pool[random.nextInt(pool.length)];
+		sb.append(' ').append(spec).append('\t').append(spec);
+		for (int i = 0; i < 11; i++) {
+			sb.append('\t').append(random.nextInt(i < 7 ? 10 : 1000));
+		}
+		return sb.append('\n').toString();
+	}
+
+	/** originCode能够编码为双字节的汉字(U+4E00至U+9FA5)。 */
+	private static char[] commonChars(Charset origin) {
+		CharsetEncoder encoder = origin.newEncoder();
+		StringBuilder sb = new StringBuilder();
+		for (char c = 0x4E00; c <= 0x9FA5; c++) {
+			if (encoder.canEncode(c) && String.valueOf(c).getBytes(origin).length == 2) sb.append(c);
+		}
+		return sb.toString().toCharArray();
+	}
+}
@@ -0,0 +1,193 @@
+package convert.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**<p>
+ * 生成任意大小(从几MB到几十GB)的乱码文件，以及对应的正确文件，用于端到端测试(见EndToEnd)。</p><p>
+ * 先随机生成原始文本，按编码链反向制造乱码(与Corpus相同)写入乱码文件，
+ * 同时把原始文本按outputCode编码写入正确文件，转换结果应与正确文件完全相同。
+ * 数据按块生成、边生成边写入，占用的内存与文件大小无关。</p><p>
+ * asciiDensity为原始文本中ASCII字符(字母、数字、空格和换行符)的比例，0为没有任何ASCII字符的连续汉字，
+ * 用于测试很难找到分块位置的情况(UTF-16的乱码中完全没有ASCII字符)。
+ * asciiDensity大于0时用换行符把文件补齐到正好size字节，
+ * 例如size为4096的整数倍时，可以测试最后一块正好是一整块的情况。</p><p>
+ * 汉字只使用originCode编码为双字节、且经过middleCode解码再编码后不变的字符，
+ * 例如Windows-1252没有定义0x81、0x8D、0x8F、0x90、0x9D，包含这些字节的GBK汉字无法恢复，所以不使用。</p><p>
+ * 命令行：java -cp benchmarks/target/benchmarks.jar convert.bench.CorpusGenerator mojibake.txt expected.txt
+ * [--chain=UTF-8/Windows-1252/GBK/UTF-8] [--size=64M] [--ascii=0.3] [--bom] [--seed=42]</p>
+ * @author 何晶   He, Jing
+ */
+public final class CorpusGenerator {
+	//EndToEnd默认测试的编码链：inputCode/middleCode/originCode/outputCode
+	public static final String[] CHAINS = {
+		"UTF-8/Windows-1252/GBK/UTF-8",
+		"UTF-8/ISO-8859-1/GBK/UTF-8",
+		"UTF-8/ISO-8859-1/Big5/UTF-8",
+		"UTF-16LE/Windows-1252/GBK/UTF-8",
+		"UTF-16BE/Windows-1252/GBK/UTF-8",
+	};
+	public static final double DEFAULT_ASCII_DENSITY = 0.3;
+	public static final long DEFAULT_SEED = 42;
+	//每次生成和写入的字符数
+	private static final int BLOCK_CHARS = 16 << 10;
+	private static final String LETTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+	private CorpusGenerator() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		String chain = CHAINS[0];
+		long size = 64 << 20;
+		double ascii = DEFAULT_ASCII_DENSITY;
+		boolean bom = false;
+		long seed = DEFAULT_SEED;
+		String[] paths = new String[2];
+		int n = 0;
+		for (String arg : args) {
+			if (arg.startsWith("--chain=")) {
+				chain = arg.substring("--chain=".length());
+			} else if (arg.startsWith("--size=")) {
+				size = parseSize(arg.substring("--size=".length()));
+			} else if (arg.startsWith("--ascii=")) {
+				ascii = Double.parseDouble(arg.substring("--ascii=".length()));
+			} else if ("--bom".equals(arg)) {
+				bom = true;
+			} else if (arg.startsWith("--seed=")) {
+				seed = Long.parseLong(arg.substring("--seed=".length()));
+			} else if (!arg.startsWith("--") && n < 2) {
+				paths[n++] = arg;
+			} else {
+				System.err.println("Unknown option: " + arg + ". Usage: CorpusGenerator mojibake expected "
+						+ "[--chain=IN/MIDDLE/ORIGIN/OUT] [--size=N[K|M|G]] [--ascii=0.0-1.0] [--bom] [--seed=N]");
+				System.exit(1);
+			}
+		}
+		if (n < 2) {
+			System.err.println("Usage: CorpusGenerator mojibake expected [options]");
+			System.exit(1);
+		}
+		long written = generate(Paths.get(paths[0]), Paths.get(paths[1]), chain.split("/"), size, ascii, bom, seed);
+		System.out.println("Generated " + written + " bytes of " + chain + " mojibake.");
+	}
+
+	/**
+	 * @param mojibake		&nbsp;乱码文件，即转换程序的输入
+	 * @param expected		&nbsp;正确文件，按outputCode编码的原始文本
+	 * @param chain			&nbsp;inputCode, middleCode, originCode, outputCode
+	 * @param size			&nbsp;乱码文件的最大字节数(包括BOM)
+	 * @param asciiDensity	&nbsp;ASCII字符的比例，0.0-1.0
+	 * @param bom			&nbsp;是否在乱码文件开头写入BOM，只适用于UTF-16
+	 * @param seed			&nbsp;随机数种子，相同的参数生成相同的文件
+	 * @return	&nbsp;乱码文件的字节数
+	 * @throws IOException
+	 */
+	public static long generate(Path mojibake, Path expected, String[] chain, long size, double asciiDensity,
+			boolean bom, long seed) throws IOException {
+		if (asciiDensity < 0 || asciiDensity > 1) {
+			throw new IllegalArgumentException("asciiDensity must be between 0 and 1, got " + asciiDensity);
+		}
+		Charset input = Charset.forName(chain[0]);
+		Charset middle = Charset.forName(chain[1]);
+		Charset origin = Charset.forName(chain[2]);
+		Charset output = Charset.forName(chain[3]);
+		char[] pool = roundTripChars(middle, origin);
+		Random random = new Random(seed);
+		long written = 0;
+		try (OutputStream in = new BufferedOutputStream(Files.newOutputStream(mojibake), 1 << 16);
+				OutputStream ex = new BufferedOutputStream(Files.newOutputStream(expected), 1 << 16)) {
+			if (bom) {
+				byte[] b = bom(input);
+				in.write(b);
+				written += b.length;
+			}
+			StringBuilder text = new StringBuilder(BLOCK_CHARS);
+			while (true) {
+				text.setLength(0);
+				fill(text, random, pool, asciiDensity);
+				byte[] m = Corpus.encode(text.toString(), input, middle, origin);
+				if (written + m.length > size) break;
+				in.write(m);
+				ex.write(text.toString().getBytes(output));
+				written += m.length;
+			}
+			//the last block, one character at a time
+			for (int i = 0; i < text.length(); i++) {
+				String c = String.valueOf(text.charAt(i));
+				byte[] m = Corpus.encode(c, input, middle, origin);
+				if (written + m.length > size) break;
+				in.write(m);
+				ex.write(c.getBytes(output));
+				written += m.length;
+			}
+			if (asciiDensity > 0) {
+				byte[] newline = "\n".getBytes(input);
+				while (written + newline.length <= size) {
+					in.write(newline);
+					ex.write("\n".getBytes(output));
+					written += newline.length;
+				}
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * 读取"64M"、"10G"等形式的大小。
+	 */
+	public static long parseSize(String s) {
+		String t = s.trim().toUpperCase(Locale.ROOT);
+		int shift = 0;
+		if (t.endsWith("K")) {
+			shift = 10;
+		} else if (t.endsWith("M")) {
+			shift = 20;
+		} else if (t.endsWith("G")) {
+			shift = 30;
+		}
+		if (shift > 0) t = t.substring(0, t.length() - 1);
+		return Long.parseLong(t) << shift;
+	}
+
+	private static void fill(StringBuilder text, Random random, char[] pool, double asciiDensity) {
+		for (int i = 0; i < BLOCK_CHARS; i++) {
+			if (random.nextDouble() >= asciiDensity) {
+				text.append(pool[random.nextInt(pool.length)]);
+			} else {
+				int r = random.nextInt(40);
+				text.append(r == 0 ? '\n' : r < 7 ? ' ' : LETTERS.charAt(random.nextInt(LETTERS.length())));
+			}
+		}
+	}
+
+	private static byte[] bom(Charset input) {
+		if ("UTF-16LE".equals(input.name())) return new byte[] {(byte) 0xFF, (byte) 0xFE};
+		if ("UTF-16BE".equals(input.name()) || "UTF-16".equals(input.name())) {
+			return new byte[] {(byte) 0xFE, (byte) 0xFF};
+		}
+		throw new IllegalArgumentException("Only UTF-16 input can have a BOM, got " + input.name());
+	}
+
+	/**
+	 * originCode编码为双字节、且经过middleCode解码再编码后不变的汉字(U+4E00至U+9FA5)。
+	 */
+	private static char[] roundTripChars(Charset middle, Charset origin) {
+		CharsetEncoder encoder = origin.newEncoder();
+		StringBuilder sb = new StringBuilder();
+		for (char c = 0x4E00; c <= 0x9FA5; c++) {
+			if (!encoder.canEncode(c)) continue;
+			byte[] b = String.valueOf(c).getBytes(origin);
+			if (b.length == 2 && Arrays.equals(new String(b, middle).getBytes(middle), b)) sb.append(c);
+		}
+		return sb.toString().toCharArray();
+	}
+}
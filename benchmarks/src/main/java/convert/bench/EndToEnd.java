@@ -0,0 +1,219 @@
+package convert.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/**<p>
+ * 端到端的吞吐量和正确性测试。按CorpusGenerator.CHAINS中的每条编码链(UTF-16另外生成带BOM的文件)
+ * 生成乱码文件和正确文件，再用每种方式在单独的JVM中转换，报告：</p><p>
+ * MB/s：输入的字节数除以main()的耗时(不包括JVM启动)；</p><p>
+ * RSS：子进程的最大常驻内存(VmHWM，见Measured)；</p><p>
+ * 结果：输出与正确文件逐字节比较，不同时报告第一个不同的字节的位置。</p><p>
+ * 转换方式为twoTimeConvert的默认方式、--nio和--parallel；UTF-8/ISO-8859-1/GBK/UTF-8另外测试
+ * UTF8ToANSI和UTF8ToANSI --nio。有任何一项失败时退出码为1。</p><p>
+ * 命令行：java -cp benchmarks/target/benchmarks.jar convert.bench.EndToEnd
+ * [--size=64M] [--ascii=0.3] [--chain=IN/MIDDLE/ORIGIN/OUT]... [--jvm=-Xmx64m]... [--dir=path] [--keep]</p><p>
+ * --chain可以使用多次，只测试指定的编码链；--jvm为子进程的JVM参数，例如限制堆的大小；
+ * --dir为生成文件的目录，默认为临时目录；--keep保留生成的文件。--ascii=0时原始文本中没有任何ASCII字符，
+ * 乱码中只剩下GBK、Big5尾字节(0x40-0x7E)形成的ASCII字符，UTF-16则完全没有，
+ * 按ASCII字符分块的方式可能会报告分块失败，结果不同是预期的。</p>
+ * @author 何晶   He, Jing
+ */
+public final class EndToEnd {
+	private static final String MIXED_CHAIN = "UTF-8/ISO-8859-1/GBK/UTF-8";
+	//子进程出错时显示的最后几行输出
+	private static final int TAIL_LINES = 5;
+
+	private EndToEnd() {
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		long size = 64 << 20;
+		double ascii = CorpusGenerator.DEFAULT_ASCII_DENSITY;
+		List<String> chains = new ArrayList<String>();
+		List<String> jvmArgs = new ArrayList<String>();
+		Path dir = null;
+		boolean keep = false;
+		for (String arg : args) {
+			if (arg.startsWith("--size=")) {
+				size = CorpusGenerator.parseSize(arg.substring("--size=".length()));
+			} else if (arg.startsWith("--ascii=")) {
+				ascii = Double.parseDouble(arg.substring("--ascii=".length()));
+			} else if (arg.startsWith("--chain=")) {
+				chains.add(arg.substring("--chain=".length()));
+			} else if (arg.startsWith("--jvm=")) {
+				jvmArgs.add(arg.substring("--jvm=".length()));
+			} else if (arg.startsWith("--dir=")) {
+				dir = Paths.get(arg.substring("--dir=".length()));
+			} else if ("--keep".equals(arg)) {
+				keep = true;
+			} else {
+				System.err.println("Unknown option: " + arg + ". Supported options are: "
+						+ "--size=N[K|M|G], --ascii=0.0-1.0, --chain=IN/MIDDLE/ORIGIN/OUT, --jvm=ARG, --dir=path, --keep.");
+				System.exit(1);
+			}
+		}
+		if (chains.isEmpty()) chains.addAll(Arrays.asList(CorpusGenerator.CHAINS));
+		if (dir == null) {
+			dir = Files.createTempDirectory("convert-e2e-");
+		} else {
+			Files.createDirectories(dir);
+		}
+		System.out.printf(Locale.ROOT, "%-38s %-26s %9s %8s %9s %8s  %s%n",
+				"chain", "mode", "MB", "seconds", "MB/s", "RSS MB", "result");
+		int failures = 0;
+		for (String chain : chains) {
+			String[] codes = chain.split("/");
+			boolean utf16 = codes[0].startsWith("UTF-16");
+			for (boolean bom : utf16 ? new boolean[] {false, true} : new boolean[] {false}) {
+				String name = chain.replace('/', '_') + (bom ? "-bom" : "");
+				Path mojibake = dir.resolve(name + ".txt");
+				Path expected = dir.resolve(name + ".expected");
+				Path output = dir.resolve(name + ".out");
+				long bytes = CorpusGenerator.generate(mojibake, expected, codes, size, ascii, bom,
+						CorpusGenerator.DEFAULT_SEED);
+				for (List<String> mode : modes(chain, mojibake, output, codes)) {
+					if (!run(chain + (bom ? " +BOM" : ""), mode, bytes, jvmArgs, output, expected)) failures++;
+					Files.deleteIfExists(output);
+				}
+				if (!keep) {
+					Files.deleteIfExists(mojibake);
+					Files.deleteIfExists(expected);
+				}
+			}
+		}
+		if (!keep) Files.deleteIfExists(dir);
+		if (failures > 0) {
+			System.out.println(failures + " run(s) failed.");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * 每种转换方式的类名和参数。
+	 */
+	private static List<List<String>> modes(String chain, Path in, Path out, String[] codes) {
+		List<List<String>> modes = new ArrayList<List<String>>();
+		List<String> base = new ArrayList<String>(Arrays.asList("convert.twoTimeConvert", in.toString(), out.toString()));
+		base.addAll(Arrays.asList(codes));
+		modes.add(base);
+		for (String option : new String[] {"--nio", "--parallel"}) {
+			List<String> m = new ArrayList<String>(base);
+			m.add(option);
+			modes.add(m);
+		}
+		if (MIXED_CHAIN.equals(chain)) {
+			//UTF8ToANSI only knows this chain
+			modes.add(Arrays.asList("convert.UTF8ToANSI", in.toString(), out.toString()));
+			modes.add(Arrays.asList("convert.UTF8ToANSI", in.toString(), out.toString(), "--nio"));
+		}
+		return modes;
+	}
+
+	/**
+	 * 在子进程中运行一种转换方式，打印一行结果。
+	 * @return	&nbsp;是否成功且输出正确
+	 */
+	private static boolean run(String label, List<String> mode, long bytes, List<String> jvmArgs, Path output,
+			Path expected) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(jvmArgs);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Measured.class.getName());
+		command.addAll(mode);
+		Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+		long nanos = -1;
+		long rss = -1;
+		Deque<String> tail = new ArrayDeque<String>();
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), Charset.defaultCharset()))) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				if (line.startsWith(Measured.MARKER)) {
+					for (String field : line.substring(Measured.MARKER.length()).trim().split(" ")) {
+						if (field.startsWith("nanos=")) nanos = Long.parseLong(field.substring("nanos=".length()));
+						if (field.startsWith("vmhwm=")) rss = Long.parseLong(field.substring("vmhwm=".length()));
+					}
+				} else {
+					tail.addLast(line);
+					if (tail.size() > TAIL_LINES) tail.removeFirst();
+				}
+			}
+		}
+		int exit = p.waitFor();
+		String result;
+		if (exit != 0 || nanos < 0) {
+			result = "EXIT " + exit;
+		} else {
+			long diff = compare(output, expected);
+			result = diff < 0 ? "OK" : "DIFF at byte " + diff;
+		}
+		String name = mode.get(0).substring("convert.".length());
+		for (String arg : mode) {
+			if (arg.startsWith("--")) name += " " + arg;
+		}
+		double mb = bytes / (1024.0 * 1024.0);
+		double seconds = nanos / 1e9;
+		System.out.printf(Locale.ROOT, "%-38s %-26s %9.1f %8.2f %9.1f %8.1f  %s%n", label, name, mb, seconds,
+				nanos > 0 ? mb / seconds : 0.0, rss / (1024.0 * 1024.0), result);
+		if (!"OK".equals(result)) {
+			for (String line : tail) {
+				System.out.println("    " + line);
+			}
+		}
+		return "OK".equals(result);
+	}
+
+	/**
+	 * 逐字节比较两个文件。
+	 * @return	&nbsp;第一个不同的字节的位置，完全相同时返回-1
+	 */
+	static long compare(Path a, Path b) throws IOException {
+		if (!Files.exists(a)) return 0;
+		try (FileChannel ca = FileChannel.open(a, StandardOpenOption.READ);
+				FileChannel cb = FileChannel.open(b, StandardOpenOption.READ)) {
+			ByteBuffer ba = ByteBuffer.allocate(1 << 20);
+			ByteBuffer bb = ByteBuffer.allocate(1 << 20);
+			long offset = 0;
+			while (true) {
+				ba.clear();
+				bb.clear();
+				int na = readFully(ca, ba);
+				int nb = readFully(cb, bb);
+				ba.flip();
+				bb.flip();
+				if (!ba.equals(bb)) {
+					int n = Math.min(na, nb);
+					for (int i = 0; i < n; i++) {
+						if (ba.get(i) != bb.get(i)) return offset + i;
+					}
+					//one file is shorter
+					return offset + n;
+				}
+				if (na < ba.capacity()) return -1;
+				offset += na;
+			}
+		}
+	}
+
+	private static int readFully(FileChannel c, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining() && c.read(buf) != -1);
+		return buf.position();
+	}
+}
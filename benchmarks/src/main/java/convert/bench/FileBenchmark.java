@@ -0,0 +1,118 @@
+package convert.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import convert.MappedConvert;
+import convert.ParallelConvert;
+import convert.StreamingTranscoder;
+import convert.TranscodeKernel;
+import convert.UTF8ToANSI;
+
+/**<p>
+ * 转换整个文件的各种方法的基准测试，每次操作转换一个fileSize字节的临时文件：</p><p>
+ * wholeFile：UTF8ToANSI.wholeFileConvert()，整个文件读入内存后一次转换；</p><p>
+ * segment：twoTimeConvert.segmentConvert()所用的StreamingTranscoder，每块segmentSize字节。
+ * 转码器和缓冲区只创建一次，文件在每次操作之前打开，所以不包括参数解析、查找编码和控制台输出；</p><p>
+ * mapped：MappedConvert，内存映射文件；</p><p>
+ * parallel：ParallelConvert，多个线程。</p><p>
+ * wholeFileConvert()只支持UTF-8 -&gt; ISO-8859-1 -&gt; GBK这一条编码链，所以所有方法都使用这条编码链。
+ * 平均耗时的单位为毫秒。</p>
+ * @author 何晶   He, Jing
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileBenchmark {
+	private static final String[] CHAIN = {"UTF-8", "ISO-8859-1", "GBK", "UTF-8"};
+
+	@Param({"1048576", "16777216"})
+	public int fileSize;
+
+	@Param({"4096", "65536"})
+	public int segmentSize;
+
+	@Param({Corpus.ASCII, Corpus.CJK, Corpus.TSV})
+	public String mix;
+
+	private Path input;
+	private Path output;
+	private TranscodeKernel kernel;
+	private StreamingTranscoder transcoder;
+	private ByteBuffer segmentBuffer;
+	private FileChannel in;
+	private FileChannel out;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		input = Files.createTempFile("convert-bench-", ".in");
+		output = Files.createTempFile("convert-bench-", ".out");
+		Files.write(input, Corpus.mojibake(mix, CHAIN, fileSize));
+		kernel = TranscodeKernel.forChain(CHAIN[0], CHAIN[1], CHAIN[2], CHAIN[3]);
+		transcoder = new StreamingTranscoder(CHAIN[0], CHAIN[1], CHAIN[2], CHAIN[3]);
+		segmentBuffer = ByteBuffer.allocate(segmentSize);
+	}
+
+	/** segment()使用的文件，与segmentConvert()一样打开，但不计入耗时。 */
+	@Setup(Level.Invocation)
+	public void openFiles() throws IOException {
+		in = FileChannel.open(input, StandardOpenOption.READ);
+		out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	@TearDown(Level.Invocation)
+	public void closeFiles() throws IOException {
+		in.close();
+		out.close();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(input);
+		Files.deleteIfExists(output);
+	}
+
+	@Benchmark
+	public void wholeFile() {
+		UTF8ToANSI.wholeFileConvert(input.toString(), output.toString());
+	}
+
+	@Benchmark
+	public void segment() throws IOException {
+		transcoder.convert(in, out, segmentBuffer);
+	}
+
+	@Benchmark
+	public void mapped() throws IOException {
+		MappedConvert.convert(input.toString(), output.toString(), kernel, MappedConvert.DEFAULT_WINDOW_SIZE);
+	}
+
+	@Benchmark
+	public void parallel() throws IOException {
+		int threads = ParallelConvert.defaultThreads();
+		ParallelConvert.convert(input.toString(), output.toString(), kernel, ParallelConvert.DEFAULT_WINDOW_SIZE,
+				threads, ParallelConvert.defaultInFlight(threads));
+	}
+}
@@ -0,0 +1,57 @@
+package convert.bench;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**<p>
+ * 在子进程中运行另一个类的main()，结束后在标准错误输出一行统计数据，由EndToEnd读取：</p><p>
+ * measured: nanos=main()的耗时 vmhwm=进程的最大常驻内存(字节)</p><p>
+ * 最大常驻内存读取自/proc/self/status中的VmHWM，只在Linux中可用，其他系统为-1。
+ * 由子进程自己读取，是因为Java 8的Process无法取得子进程的pid。</p>
+ * @author 何晶   He, Jing
+ */
+public final class Measured {
+	static final String MARKER = "measured:";
+
+	private Measured() {
+	}
+
+	/**
+	 * @param args	&nbsp;类名，以及传给它的main()的参数
+	 */
+	public static void main(String[] args) throws Throwable {
+		Method main = Class.forName(args[0]).getMethod("main", String[].class);
+		long start = System.nanoTime();
+		try {
+			main.invoke(null, (Object) Arrays.copyOfRange(args, 1, args.length));
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+		long nanos = System.nanoTime() - start;
+		System.out.flush();
+		System.err.println(MARKER + " nanos=" + nanos + " vmhwm=" + peakRss());
+	}
+
+	/**
+	 * @return	&nbsp;进程的最大常驻内存(字节)，无法读取时返回-1
+	 */
+	static long peakRss() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+				//VmHWM:     41236 kB
+				if (line.startsWith("VmHWM:")) {
+					String[] parts = line.substring("VmHWM:".length()).trim().split("\\s+");
+					return Long.parseLong(parts[0]) * 1024;
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			//not Linux
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,42 @@
+package convert.bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**<p>
+ * benchmarks.jar的入口。与JMH的命令行相同，但总是使用GC profiler，
+ * 以便与吞吐量一起报告每次操作分配的字节数(gc.alloc.rate.norm)。例如：</p><p>
+ * java -jar benchmarks/target/benchmarks.jar SegmentBenchmark -p mix=cjk -p segmentSize=65536</p><p>
+ * java -jar benchmarks/target/benchmarks.jar FileBenchmark -rf json -rff baseline.json</p>
+ * @author 何晶   He, Jing
+ */
+public final class RunBenchmarks {
+
+	private RunBenchmarks() {
+	}
+
+	public static void main(String[] args) throws RunnerException, IOException {
+		CommandLineOptions cmd;
+		try {
+			cmd = new CommandLineOptions(args);
+		} catch (CommandLineOptionException e) {
+			System.err.println("Error parsing command line: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		Runner runner = new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build());
+		if (cmd.shouldHelp()) {
+			cmd.showHelp();
+		} else if (cmd.shouldList()) {
+			runner.list();
+		} else {
+			runner.run();
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package convert.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import convert.SegmentPipeline;
+import convert.StreamingTranscoder;
+import convert.TranscodeKernel;
+
+/**<p>
+ * 转换一个分块(segment)的各种方法的基准测试，每次操作转换一块segmentSize字节的乱码：</p><p>
+ * stringRoundTrip：原来的realConvert2()，new String()和getBytes()四步转换；</p><p>
+ * charsetEncoder：原来的realConvert()，用CharsetEncoder编码为middleCode(忽略无法映射的字符)；</p><p>
+ * kernel：TranscodeKernel查表转换，写入可重复使用的缓冲区；</p><p>
+ * streaming：StreamingTranscoder，可重复使用的CharsetDecoder/CharsetEncoder；</p><p>
+ * pipeline：SegmentPipeline，UTF8ToANSI.segmentConvert()按4096字节分块的完整流程，
+ * 稳定运行时gc.alloc.rate.norm应为0(JMH自身的误差在1字节以内)，用于发现每块的分配是否又出现了。</p><p>
+ * 参数：segmentSize为分块大小；chain为用/分隔的编码链；mix为输入类型，见Corpus。
+ * 吞吐量的单位为每秒操作数，乘以segmentSize即为字节数。
+ * 使用RunBenchmarks运行时会同时使用GC profiler，报告每次操作分配的字节数(gc.alloc.rate.norm)。</p>
+ * @author 何晶   He, Jing
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentBenchmark {
+	@Param({"4096", "65536", "1048576"})
+	public int segmentSize;
+
+	@Param({"UTF-8/Windows-1252/GBK/UTF-8", "UTF-8/ISO-8859-1/GBK/UTF-8", "UTF-8/Windows-1252/Big5/UTF-8"})
+	public String chain;
+
+	@Param({Corpus.ASCII, Corpus.CJK, Corpus.TSV})
+	public String mix;
+
+	private byte[] segment;
+	private Charset input;
+	private Charset middle;
+	private Charset origin;
+	private Charset output;
+	private CharsetEncoder middleEncoder;
+	private TranscodeKernel kernel;
+	private ByteBuffer in;
+	private ByteBuffer out;
+	private StreamingTranscoder transcoder;
+	private WritableByteChannel discard;
+	private SegmentPipeline pipeline;
+	private ReplayChannel replay;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		String[] codes = chain.split("/");
+		segment = Corpus.mojibake(mix, codes, segmentSize);
+		input = Charset.forName(codes[0]);
+		middle = Charset.forName(codes[1]);
+		origin = Charset.forName(codes[2]);
+		output = Charset.forName(codes[3]);
+		middleEncoder = middle.newEncoder().onUnmappableCharacter(CodingErrorAction.IGNORE);
+		kernel = TranscodeKernel.forChain(codes[0], codes[1], codes[2], codes[3]);
+		in = ByteBuffer.wrap(segment);
+		out = ByteBuffer.allocate(kernel.maxOutput(segment.length));
+		transcoder = new StreamingTranscoder(input, middle, origin, output, StreamingTranscoder.DEFAULT_BUFFER_SIZE);
+		discard = new DiscardChannel();
+		pipeline = new SegmentPipeline(kernel, 4096);
+		replay = new ReplayChannel(segment);
+	}
+
+	@Benchmark
+	public byte[] stringRoundTrip() {
+		String step1 = new String(segment, input);
+		byte[] step2 = step1.getBytes(middle);
+		String step3 = new String(step2, origin);
+		return step3.getBytes(output);
+	}
+
+	@Benchmark
+	public byte[] charsetEncoder() throws CharacterCodingException {
+		String inS = new String(segment, input);
+		middleEncoder.reset();
+		ByteBuffer conv1Bytes = middleEncoder.encode(CharBuffer.wrap(inS.toCharArray()));
+		return new String(conv1Bytes.array(), 0, conv1Bytes.limit(), origin).getBytes(output);
+	}
+
+	@Benchmark
+	public void kernel(Blackhole bh) {
+		in.clear();
+		out.clear();
+		kernel.convert(in, out);
+		bh.consume(out);
+	}
+
+	@Benchmark
+	public void streaming(Blackhole bh) throws IOException {
+		in.clear();
+		transcoder.convert(in, true, discard);
+		transcoder.reset();
+		bh.consume(discard);
+	}
+
+	@Benchmark
+	public void pipeline(Blackhole bh) throws IOException {
+		replay.rewind();
+		pipeline.convert(replay, discard);
+		bh.consume(discard);
+	}
+
+	/** 重复读取同一段数据，每次操作前rewind()。 */
+	static final class ReplayChannel implements ReadableByteChannel {
+		private final ByteBuffer data;
+
+		ReplayChannel(byte[] data) {
+			this.data = ByteBuffer.wrap(data);
+		}
+
+		void rewind() {
+			data.clear();
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (!data.hasRemaining()) return -1;
+			int n = Math.min(dst.remaining(), data.remaining());
+			int limit = data.limit();
+			data.limit(data.position() + n);
+			dst.put(data);
+			data.limit(limit);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/** 丢弃所有写入的数据。 */
+	static final class DiscardChannel implements WritableByteChannel {
+		@Override
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package convert;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**<p>
+ * 一次检查8个字节的ASCII扫描(SWAR，SIMD Within A Register)。</p><p>
+ * 用ByteBuffer.getLong()一次读取8个字节，与0x8080808080808080做与运算，
+ * 结果为0说明8个字节都是ASCII字符(0-127)，否则用numberOfLeadingZeros/numberOfTrailingZeros直接找到
+ * 第一个或最后一个ASCII字节的位置，不需要逐个字节比较。不足8个字节的部分逐个字节处理。</p><p>
+ * UTF-16的ASCII字符为两个字节，一个long中包含4个字符(16位的通道)，
+ * LE的ASCII字符为(0x00-0x7F, 0x00)，BE为(0x00, 0x00-0x7F)，同样可以用掩码一次判断4个字符。
+ * 位置按from对齐到2个字节，与SegmentSplitter相同。</p><p>
+ * getLong()在HotSpot中会编译为一条读取指令。jdk.incubator.vector在Java 8中不可用，
+ * 且至今仍为孵化模块，所以只使用long。</p>
+ * @author 何晶   He, Jing
+ */
+public final class AsciiScanner {
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	//16位通道，按大端读取时每个通道为(第一字节 << 8 | 第二字节)，通道内的非ASCII位
+	private static final long UTF16BE_MASK = 0xFF80FF80FF80FF80L;
+	private static final long UTF16LE_MASK = 0x80FF80FF80FF80FFL;
+	private static final long LANE_LOW = 0x0001000100010001L;
+	private static final long LANE_HIGH = 0x8000800080008000L;
+
+	private AsciiScanner() {
+	}
+
+	/**
+	 * 从后向前查找最后一个ASCII字节。不使用也不改变buf的position和limit。
+	 * @return	&nbsp;[from, to)中最后一个ASCII字节的位置，找不到时返回-1
+	 */
+	public static int lastAscii(ByteBuffer buf, int from, int to) {
+		boolean little = buf.order() == ByteOrder.LITTLE_ENDIAN;
+		int i = to;
+		while (i - 8 >= from) {
+			long ascii = ~word(buf, i - 8, little) & HIGH_BITS;
+			if (ascii != 0) {
+				//the last byte of the word is the least significant one
+				return i - 1 - (Long.numberOfTrailingZeros(ascii) >>> 3);
+			}
+			i -= 8;
+		}
+		while (--i >= from) {
+			if (buf.get(i) >= 0) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * 从前向后查找第一个ASCII字节。
+	 * @return	&nbsp;[from, to)中第一个ASCII字节的位置，找不到时返回-1
+	 */
+	public static int firstAscii(ByteBuffer buf, int from, int to) {
+		boolean little = buf.order() == ByteOrder.LITTLE_ENDIAN;
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long ascii = ~word(buf, i, little) & HIGH_BITS;
+			if (ascii != 0) {
+				return i + (Long.numberOfLeadingZeros(ascii) >>> 3);
+			}
+		}
+		for (; i < to; i++) {
+			if (buf.get(i) >= 0) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * 从from开始连续的ASCII字节数。
+	 */
+	public static int asciiRun(ByteBuffer buf, int from, int to) {
+		boolean little = buf.order() == ByteOrder.LITTLE_ENDIAN;
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long high = word(buf, i, little) & HIGH_BITS;
+			if (high != 0) {
+				return i - from + (Long.numberOfLeadingZeros(high) >>> 3);
+			}
+		}
+		while (i < to && buf.get(i) >= 0) i++;
+		return i - from;
+	}
+
+	/**
+	 * 从from开始查找至少minRun个字节的连续ASCII字节。
+	 * @return	&nbsp;第一段足够长的ASCII字节的开始位置，找不到时返回-1
+	 */
+	public static int findAsciiRun(ByteBuffer buf, int from, int to, int minRun) {
+		int i = from;
+		while (to - i >= minRun) {
+			int start = firstAscii(buf, i, to);
+			if (start < 0) return -1;
+			int run = asciiRun(buf, start, to);
+			if (run >= minRun) return start;
+			i = start + run;
+		}
+		return -1;
+	}
+
+	/**
+	 * 编码是否与ASCII完全兼容：0-127的每个字节都解码为同一个字符，且编码回同一个字节。
+	 * UTF-16、EBCDIC和ISO-2022等有状态的编码(ESC等控制字符有特殊含义)不兼容。
+	 */
+	public static boolean isAsciiCompatible(Charset cs) {
+		if (!cs.canEncode()) return false;
+		byte[] ascii = new byte[128];
+		for (int b = 0; b < 128; b++) ascii[b] = (byte) b;
+		String s = new String(ascii, cs);
+		if (s.length() != 128) return false;
+		for (int b = 0; b < 128; b++) {
+			if (s.charAt(b) != b) return false;
+		}
+		return Arrays.equals(s.getBytes(cs), ascii);
+	}
+
+	/**
+	 * 在UTF-16数据中从后向前查找最后一个ASCII字符，位置按from对齐到2个字节。
+	 * @param littleEndian	&nbsp;是否为UTF-16LE
+	 * @return	&nbsp;[from, to)中最后一个完整的ASCII字符的第一个字节的位置，找不到时返回-1
+	 */
+	public static int lastAscii16(ByteBuffer buf, int from, int to, boolean littleEndian) {
+		boolean little = buf.order() == ByteOrder.LITTLE_ENDIAN;
+		long mask = littleEndian ? UTF16LE_MASK : UTF16BE_MASK;
+		//end of the last complete code unit
+		int i = to - ((to - from) & 1);
+		while (i - 8 >= from) {
+			long x = word(buf, i - 8, little) & mask;
+			//a lane is ASCII when it is zero, borrows only run towards more significant lanes,
+			//so the least significant flagged lane is always a real one
+			long zero = (x - LANE_LOW) & ~x & LANE_HIGH;
+			if (zero != 0) {
+				return i - 2 - ((Long.numberOfTrailingZeros(zero) >>> 4) << 1);
+			}
+			i -= 8;
+		}
+		for (i -= 2; i >= from; i -= 2) {
+			if (isAscii16(buf.get(i), buf.get(i + 1), littleEndian)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * 在UTF-16数据中从前向后查找第一个ASCII字符，位置按from对齐到2个字节。
+	 * @param littleEndian	&nbsp;是否为UTF-16LE
+	 * @return	&nbsp;[from, to)中第一个完整的ASCII字符的第一个字节的位置，找不到时返回-1
+	 */
+	public static int firstAscii16(ByteBuffer buf, int from, int to, boolean littleEndian) {
+		boolean little = buf.order() == ByteOrder.LITTLE_ENDIAN;
+		long mask = littleEndian ? UTF16LE_MASK : UTF16BE_MASK;
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long x = word(buf, i, little) & mask;
+			//(x | x + 0x7FFF) sets the lane's top bit unless the lane is zero, without carries between lanes
+			long nonZero = (((x & ~LANE_HIGH) + ~LANE_HIGH) | x) & LANE_HIGH;
+			if (nonZero != LANE_HIGH) {
+				long zero = ~nonZero & LANE_HIGH;
+				return i + ((Long.numberOfLeadingZeros(zero) >>> 4) << 1);
+			}
+		}
+		for (; i + 2 <= to; i += 2) {
+			if (isAscii16(buf.get(i), buf.get(i + 1), littleEndian)) return i;
+		}
+		return -1;
+	}
+
+	private static boolean isAscii16(byte first, byte second, boolean littleEndian) {
+		return littleEndian ? first >= 0 && second == 0 : first == 0 && second >= 0;
+	}
+
+	//8 bytes in index order, buf[i] in the most significant byte
+	private static long word(ByteBuffer buf, int i, boolean little) {
+		long w = buf.getLong(i);
+		return little ? Long.reverseBytes(w) : w;
+	}
+}
@@ -0,0 +1,248 @@
+package convert;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**<p>
+ * 批量转换。一次启动JVM，转换一个目录(包括子目录)中的所有文件，或者一个文件列表中的所有文件，
+ * 避免对成千上万个小文件每个都启动一次JVM。</p><p>
+ * 本程序可以使用2-6个参数，与twoTimeConvert相同，只是前两个参数变为：</p><p>
+ * source：需转换的目录；或者以@开头的文件列表的路径，列表中每行一个文件路径。</p><p>
+ * targetDir：输出目录。目录中的文件与source中的相对路径相同；文件列表中的绝对路径只保留文件名。
+ * 输出路径必须在targetDir之内(例如列表中的../x不行)，且不能与前面的文件重复(例如两个目录中的同名文件)，
+ * 否则该文件不转换，在清单中记为FAILED。输出路径与清单文件相同时(例如source中的manifest.tsv)也是如此，
+ * 不会被清单覆盖。</p><p>
+ * 选项：--threads=N 同时转换的文件数，默认为CPU核数；--manifest=path 清单文件的路径，
+ * 默认为targetDir/manifest.tsv。</p><p>
+ * 多个文件使用大小有限的线程池同时转换，每个文件使用MappedConvert转换，同一编码链的转码核心只构建一次。
+ * 全部完成后生成一个制表符分隔的清单文件，每行一个文件：
+ * 输入路径、输出路径、输入字节数、输出字节数、耗时(毫秒)、找不到分块位置的次数、OK或FAILED、失败原因。
+ * 找不到分块位置时输出中可能有被切断的字符，所以也记为FAILED。</p>
+ * @author 何晶   He, Jing
+ */
+public class BatchConvert {
+	private static String inputCode = "UTF-8";
+	private static String middleCode = "Windows-1252";
+	private static String originCode = "GBK";
+	private static String outputCode = "UTF-8";
+
+	public static void main(String[] args) throws IOException {
+		List<String> rest = new ArrayList<String>();
+		int threads = Runtime.getRuntime().availableProcessors();
+		String manifest = null;
+		for (String arg : args) {
+			if (arg.startsWith("--threads=")) {
+				try {
+					threads = Integer.parseInt(arg.substring("--threads=".length()));
+				} catch (NumberFormatException e) {
+					threads = 0;
+				}
+				if (threads < 1) {
+					System.err.println("Invalid option: " + arg + ". The value should be a positive integer.");
+					return;
+				}
+			} else if (arg.startsWith("--manifest=")) {
+				manifest = arg.substring("--manifest=".length());
+			} else if (arg.startsWith("--")) {
+				System.err.println("Unknown option: " + arg + ". Supported options are: --threads=N, --manifest=path.");
+				return;
+			} else {
+				rest.add(arg);
+			}
+		}
+		if (rest.size() > 6 || rest.size() < 2) {
+			System.err.println("Wrong number of arguments! Got " + rest.size()
+			+ " arguments. This script requires 2 to 6 arguments: \n"
+			+ "source(directory or @fileList), targetDir, "
+			+ "[inputEncoding], [middleEncoding], [originEncoding] ,[outputEncoding]."
+			+ "Arguments should be divided by spaces.");
+			return;
+		}
+		if (rest.size() >= 3) inputCode = rest.get(2);
+		if (rest.size() >= 4) middleCode = rest.get(3);
+		if (rest.size() >= 5) originCode = rest.get(4);
+		if (rest.size() >= 6) outputCode = rest.get(5);
+		TranscodeKernel kernel;
+		try {
+			kernel = TranscodeKernel.forChain(inputCode, middleCode, originCode, outputCode);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unsupported Encoding. Please check Java 8 "
+			+ "supported encodings at: http://docs.oracle.com/javase/8/docs/technotes/guides/intl/encoding.doc.html");
+			e.printStackTrace();
+			return;
+		}
+		Path target = Paths.get(rest.get(1));
+		Path manifestPath = manifest != null ? Paths.get(manifest) : target.resolve("manifest.tsv");
+		List<Result> results = convertAll(rest.get(0), target, manifestPath, kernel, threads);
+		writeManifest(results, manifestPath);
+		long in = 0;
+		long out = 0;
+		int failed = 0;
+		for (Result r : results) {
+			in += r.bytesIn;
+			out += r.bytesOut;
+			if (r.failure != null) failed++;
+		}
+		System.out.println("Converted " + (results.size() - failed) + " of " + results.size()
+				+ " files, " + in + " bytes in, " + out + " bytes out, " + failed + " failed. "
+				+ "Manifest: " + manifestPath);
+	}
+
+	/**
+	 * 转换source中的所有文件，结果按文件顺序返回。单个文件的失败会记录在结果中，不会中断其他文件。
+	 * @param source	&nbsp;目录，或以@开头的文件列表
+	 * @param target	&nbsp;输出目录
+	 * @param kernel	&nbsp;转码核心
+	 * @param threads	&nbsp;同时转换的文件数
+	 * @throws IOException	&nbsp;无法读取目录或文件列表时
+	 */
+	public static List<Result> convertAll(String source, Path target, final TranscodeKernel kernel,
+			int threads) throws IOException {
+		return convertAll(source, target, null, kernel, threads);
+	}
+
+	/**
+	 * 转换source中的所有文件，输出路径与manifest相同的文件不转换，记为失败。
+	 * @param manifest	&nbsp;之后要写入的清单文件，为null时不检查
+	 * @throws IOException	&nbsp;无法读取目录或文件列表时
+	 */
+	public static List<Result> convertAll(String source, Path target, Path manifest, final TranscodeKernel kernel,
+			int threads) throws IOException {
+		List<Path[]> pairs = listFiles(source, target);
+		Path root = target.toAbsolutePath().normalize();
+		Path manifestPath = manifest == null ? null : manifest.toAbsolutePath().normalize();
+		//output path -> the input that claimed it first
+		Map<Path, Path> claimed = new HashMap<Path, Path>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Result>> futures = new ArrayList<Future<Result>>();
+			for (final Path[] pair : pairs) {
+				Path output = pair[1].toAbsolutePath().normalize();
+				String rejected = null;
+				if (!output.startsWith(root) || output.equals(root)) {
+					rejected = "Output path is outside " + target;
+				} else if (output.equals(manifestPath)) {
+					//writeManifest() would overwrite it
+					rejected = "Output path is the manifest " + manifest;
+				} else if (claimed.containsKey(output)) {
+					rejected = "Output path is the same as for " + claimed.get(output);
+				} else {
+					claimed.put(output, pair[0]);
+				}
+				if (rejected != null) {
+					Result r = new Result(pair[0], pair[1]);
+					r.failure = rejected;
+					futures.add(CompletableFuture.completedFuture(r));
+				} else {
+					futures.add(pool.submit(() -> convertOne(pair[0], pair[1], kernel)));
+				}
+			}
+			List<Result> results = new ArrayList<Result>();
+			for (Future<Result> f : futures) {
+				try {
+					results.add(f.get());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while converting " + source, e);
+				} catch (ExecutionException e) {
+					//convertOne() catches everything it can, this is an Error
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static Result convertOne(Path input, Path output, TranscodeKernel kernel) {
+		long start = System.nanoTime();
+		Result r = new Result(input, output);
+		try {
+			r.bytesIn = Files.size(input);
+			if (output.getParent() != null) Files.createDirectories(output.getParent());
+			//small files do not need an 8MB output buffer
+			int window = (int) Math.min(MappedConvert.DEFAULT_WINDOW_SIZE, Math.max(r.bytesIn, 2));
+			r.splitFailures = MappedConvert.convert(input.toString(), output.toString(), kernel, window);
+			r.bytesOut = Files.size(output);
+			if (r.splitFailures > 0) {
+				r.failure = "Segment split failed " + r.splitFailures + " time(s), characters may be cut";
+			}
+		} catch (IOException | RuntimeException e) {
+			r.failure = e.getClass().getSimpleName() + ": " + e.getMessage();
+		}
+		r.millis = (System.nanoTime() - start) / 1000000;
+		return r;
+	}
+
+	private static List<Path[]> listFiles(String source, Path target) throws IOException {
+		List<Path[]> pairs = new ArrayList<Path[]>();
+		if (source.startsWith("@")) {
+			for (String line : Files.readAllLines(Paths.get(source.substring(1)), StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if (line.isEmpty()) continue;
+				Path input = Paths.get(line);
+				Path relative = input.isAbsolute() ? input.getFileName() : input.normalize();
+				pairs.add(new Path[] {input, target.resolve(relative)});
+			}
+		} else {
+			Path root = Paths.get(source);
+			List<Path> files;
+			try (Stream<Path> walk = Files.walk(root)) {
+				files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+			}
+			Path absTarget = target.toAbsolutePath().normalize();
+			for (Path input : files) {
+				//the target directory may live inside the source tree
+				if (input.toAbsolutePath().normalize().startsWith(absTarget)) continue;
+				pairs.add(new Path[] {input, target.resolve(root.relativize(input).toString())});
+			}
+		}
+		return pairs;
+	}
+
+	private static void writeManifest(List<Result> results, Path manifest) throws IOException {
+		if (manifest.getParent() != null) Files.createDirectories(manifest.getParent());
+		try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(manifest, StandardCharsets.UTF_8))) {
+			w.println("input\toutput\tbytesIn\tbytesOut\tmillis\tsplitFailures\tstatus\treason");
+			for (Result r : results) {
+				w.println(r.input + "\t" + r.output + "\t" + r.bytesIn + "\t" + r.bytesOut + "\t" + r.millis
+						+ "\t" + r.splitFailures + "\t" + (r.failure == null ? "OK" : "FAILED")
+						+ "\t" + (r.failure == null ? "" : r.failure.replace('\t', ' ').replace('\n', ' ')));
+			}
+		}
+	}
+
+	/** 单个文件的转换结果，即清单中的一行。 */
+	public static final class Result {
+		public final Path input;
+		public final Path output;
+		public long bytesIn;
+		public long bytesOut;
+		public long millis;
+		//找不到分块位置的次数
+		public int splitFailures;
+		//失败原因，成功时为null
+		public String failure;
+
+		Result(Path input, Path output) {
+			this.input = input;
+			this.output = output;
+		}
+	}
+}
@@ -0,0 +1,310 @@
+package convert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**<p>
+ * 自动判断乱码的编码链，即middleCode和originCode。</p><p>
+ * 只读取文件中的几小段样本(默认为在文件中均匀分布的4段，每段4KB)，对每一段依次尝试所有候选的
+ * middleCode(Windows-1252、ISO-8859-1)和originCode(GBK、GB18030、Big5、Big5-HKSCS、Shift_JIS、EUC-JP、EUC-KR)，
+ * 按转换结果中常用的中日韩字符所占的比例打分，得分最高的编码链即为结果。
+ * 这样对大文件只需读取几KB数据，而不需要用不同的编码链反复转换整个文件。</p><p>
+ * 常用字符指：GB2312一级汉字、Big5常用字、JIS第一水准汉字、KS X 1001中的韩文音节、假名以及全角标点。
+ * 转换产生的?、U+FFFD、私用区字符、控制字符和残留的拉丁字母，以及不符合书写习惯的字符组合都会扣分。
+ * 输入文本不经转换的得分也会计算出来，如果没有任何编码链比它高，说明该文件很可能不是乱码。</p>
+ * @author 何晶   He, Jing
+ */
+public final class ChainDetector {
+	public static final String[] MIDDLE_CODES = {"Windows-1252", "ISO-8859-1"};
+	public static final String[] ORIGIN_CODES = {"GBK", "GB18030", "Big5", "Big5-HKSCS", "Shift_JIS", "EUC-JP", "EUC-KR"};
+	//默认读取4段样本，每段4KB
+	public static final int DEFAULT_SAMPLE_SIZE = 4096;
+	public static final int DEFAULT_SAMPLES = 4;
+
+	private ChainDetector() {
+	}
+
+	/**
+	 * 使用默认的样本数量和大小判断编码链。
+	 * @param inputPath	&nbsp;乱码文件路径
+	 * @param inputCode	&nbsp;乱码文件目前的编码
+	 * @throws IOException
+	 */
+	public static Result detect(String inputPath, String inputCode) throws IOException {
+		return detect(inputPath, inputCode, DEFAULT_SAMPLE_SIZE, DEFAULT_SAMPLES);
+	}
+
+	/**
+	 * @param inputPath		&nbsp;乱码文件路径
+	 * @param inputCode		&nbsp;乱码文件目前的编码。UTF-16会根据BOM改为LE或BE
+	 * @param sampleSize	&nbsp;每段样本的大小(字节)
+	 * @param samples		&nbsp;样本段数，在文件中均匀分布
+	 * @throws IOException
+	 */
+	public static Result detect(String inputPath, String inputCode, int sampleSize, int samples)
+			throws IOException {
+		if (sampleSize < 16 || samples < 1) {
+			throw new IllegalArgumentException("sampleSize must be at least 16 and samples positive, got "
+					+ sampleSize + " and " + samples);
+		}
+		List<byte[]> list = new ArrayList<byte[]>();
+		try (FileChannel in = FileChannel.open(Paths.get(inputPath), StandardOpenOption.READ)) {
+			long start = 0;
+			long size = in.size();
+			//文件头部BOM信息读取
+			if (inputCode.startsWith("UTF-16") && size >= 2) {
+				ByteBuffer head = ByteBuffer.allocate(2);
+				while (head.hasRemaining() && in.read(head, head.position()) != -1);
+				if (head.get(0) == -1 && head.get(1) == -2) {
+					inputCode = "UTF-16LE";
+					start = 2;
+				} else if (head.get(0) == -2 && head.get(1) == -1) {
+					inputCode = "UTF-16BE";
+					start = 2;
+				}
+			}
+			long span = size - start;
+			if (span <= (long) sampleSize * samples) {
+				//small file, one sample is the whole file
+				samples = 1;
+				sampleSize = (int) span;
+			}
+			ByteBuffer buf = ByteBuffer.allocate(sampleSize);
+			for (int i = 0; i < samples; i++) {
+				long offset = start + (samples == 1 ? 0 : (span - sampleSize) / (samples - 1) * i);
+				//keep UTF-16 code units aligned
+				if (inputCode.startsWith("UTF-16")) offset -= (offset - start) & 1;
+				buf.clear();
+				while (buf.hasRemaining() && in.read(buf, offset + buf.position()) != -1);
+				list.add(trim(buf.array(), buf.position(), offset > start, offset + buf.position() < size, inputCode));
+			}
+		}
+		return detect(list, inputCode);
+	}
+
+	/**
+	 * 从数据流的开头读取样本，用于无法随机读取的数据，例如压缩文件。
+	 * 读取DEFAULT_SAMPLE_SIZE * DEFAULT_SAMPLES个字节作为一段样本，不会关闭in。
+	 * @param in		&nbsp;乱码数据
+	 * @param inputCode	&nbsp;乱码数据目前的编码。UTF-16会根据BOM改为LE或BE
+	 * @throws IOException
+	 */
+	public static Result detect(InputStream in, String inputCode) throws IOException {
+		byte[] buf = new byte[DEFAULT_SAMPLE_SIZE * DEFAULT_SAMPLES];
+		int len = 0;
+		int n;
+		while (len < buf.length && (n = in.read(buf, len, buf.length - len)) != -1) {
+			len += n;
+		}
+		int start = 0;
+		//文件头部BOM信息读取
+		if (inputCode.startsWith("UTF-16") && len >= 2) {
+			if (buf[0] == -1 && buf[1] == -2) {
+				inputCode = "UTF-16LE";
+				start = 2;
+			} else if (buf[0] == -2 && buf[1] == -1) {
+				inputCode = "UTF-16BE";
+				start = 2;
+			}
+		}
+		byte[] sample = trim(Arrays.copyOfRange(buf, start, len), len - start, false, len == buf.length, inputCode);
+		return detect(Collections.singletonList(sample), inputCode);
+	}
+
+	/**
+	 * 对给定的样本尝试所有候选编码链，返回得分最高的一个。
+	 * @param samples	&nbsp;样本，每一段都应该以完整的字符开始和结束
+	 * @param inputCode	&nbsp;样本的编码
+	 */
+	public static Result detect(List<byte[]> samples, String inputCode) {
+		Charset input = Charset.forName(inputCode);
+		List<String> texts = new ArrayList<String>();
+		for (byte[] s : samples) {
+			texts.add(new String(s, input));
+		}
+		double unchanged = score(texts, texts);
+		Result best = null;
+		for (String middleCode : MIDDLE_CODES) {
+			Charset middle = Charset.forName(middleCode);
+			for (String originCode : ORIGIN_CODES) {
+				if (!Charset.isSupported(originCode)) continue;
+				Charset origin = Charset.forName(originCode);
+				List<String> converted = new ArrayList<String>();
+				for (String t : texts) {
+					converted.add(new String(t.getBytes(middle), origin));
+				}
+				double s = score(texts, converted);
+				//candidates are in order of preference, ties keep the earlier one
+				if (best == null || s > best.score) {
+					best = new Result(inputCode, middleCode, originCode, s, unchanged);
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * 转换结果的得分，即(常用字符数 - 可疑字符数) / 非ASCII字符数，最高为1。
+	 * 仅凭常用字符无法区分韩文和中文：EUC-KR的韩文音节与GB2312一级汉字的字节范围相同，
+	 * 用错的编码同样会得到常用字符。所以不符合书写习惯的组合也算作可疑：
+	 * 汉字与韩文音节直接相连(现代韩文很少使用汉字)，以及两个汉字之间隔着空格(中文和日文不用空格分词)。
+	 * @param before	&nbsp;转换前的文本，用于区分原有的?和转换产生的?
+	 * @param after		&nbsp;转换后的文本
+	 */
+	static double score(List<String> before, List<String> after) {
+		long good = 0;
+		long bad = 0;
+		long total = 0;
+		for (int i = 0; i < after.size(); i++) {
+			String b = before.get(i);
+			String a = after.get(i);
+			long questions = 0;
+			for (int j = 0; j < b.length(); j++) {
+				if (b.charAt(j) == '?') questions--;
+			}
+			char prev = 0;
+			char prev2 = 0;
+			for (int j = 0; j < a.length(); j++) {
+				char c = a.charAt(j);
+				if (c == '?') {
+					questions++;
+				} else if (c >= 0x80) {
+					total++;
+					if (isSuspect(c)) {
+						bad++;
+					} else if ((isHan(c) && (isHangul(prev) || (prev == ' ' && isHan(prev2))))
+							|| (isHangul(c) && isHan(prev))) {
+						bad++;
+					} else if (Common.SET.get(c)) {
+						good++;
+					}
+				}
+				prev2 = prev;
+				prev = c;
+			}
+			if (questions > 0) {
+				bad += questions;
+				total += questions;
+			}
+		}
+		return total == 0 ? 0 : (double) (good - bad) / total;
+	}
+
+	/** 是否为常用的中日韩字符，见本类的说明。 */
+	static boolean isCommon(char c) {
+		return Common.SET.get(c);
+	}
+
+	private static boolean isHan(char c) {
+		return c >= 0x4E00 && c <= 0x9FFF;
+	}
+
+	private static boolean isHangul(char c) {
+		return c >= 0xAC00 && c <= 0xD7A3;
+	}
+
+	//replacement characters, private use, C1 controls and leftover Latin-1 letters
+	private static boolean isSuspect(char c) {
+		return c == '\uFFFD' || c <= 0x9F || (c >= 0xC0 && c <= 0xFF)
+				|| (c >= 0xE000 && c <= 0xF8FF) || Character.isSurrogate(c);
+	}
+
+	/**
+	 * 去掉样本开头和末尾不完整的部分：开头跳到第一个ASCII字符之后，末尾截到最后一个ASCII字符之后。
+	 * 找不到ASCII字符时保留整段。
+	 */
+	private static byte[] trim(byte[] buf, int len, boolean cutHead, boolean cutTail, String inputCode) {
+		int from = 0;
+		int to = len;
+		if (cutTail) {
+			//sampling is not part of the conversion, keep it out of the metrics
+			int split = SegmentSplitter.scan(ByteBuffer.wrap(buf), 0, len, inputCode);
+			if (split > 0) to = split;
+		}
+		if (cutHead) {
+			int split = SegmentSplitter.findFirstSplit(buf, 0, to, inputCode);
+			if (split > 0) from = split;
+		}
+		byte[] sample = new byte[to - from];
+		System.arraycopy(buf, from, sample, 0, sample.length);
+		return sample;
+	}
+
+	/** 常用的中日韩字符，第一次使用时构建。 */
+	private static final class Common {
+		static final BitSet SET = build();
+
+		private static BitSet build() {
+			BitSet set = new BitSet(65536);
+			//kana, CJK symbols and punctuation, fullwidth forms
+			set.set(0x3000, 0x3100);
+			set.set(0xFF01, 0xFF5F);
+			Charset gb2312 = Charset.forName("GB2312");
+			Charset big5 = Charset.forName("Big5");
+			Charset sjis = Charset.forName("Shift_JIS");
+			for (char c = 0x4E00; c <= 0x9FFF; c++) {
+				String s = String.valueOf(c);
+				//GB2312 level 1, Big5 frequently used, JIS level 1
+				if (inRange(s.getBytes(gb2312), 0xB0A1, 0xD7F9)
+						|| inRange(s.getBytes(big5), 0xA440, 0xC67E)
+						|| inRange(s.getBytes(sjis), 0x889F, 0x9872)) {
+					set.set(c);
+				}
+			}
+			if (Charset.isSupported("EUC-KR")) {
+				CharsetEncoder euckr = Charset.forName("EUC-KR").newEncoder();
+				for (char c = 0xAC00; c <= 0xD7A3; c++) {
+					if (euckr.canEncode(c)) set.set(c);
+				}
+			}
+			return set;
+		}
+
+		private static boolean inRange(byte[] b, int from, int to) {
+			if (b.length != 2) return false;
+			int code = (b[0] & 0xFF) << 8 | (b[1] & 0xFF);
+			return code >= from && code <= to;
+		}
+	}
+
+	/** 判断结果。 */
+	public static final class Result {
+		public final String inputCode;
+		public final String middleCode;
+		public final String originCode;
+		//得分最高的编码链的得分
+		public final double score;
+		//不经转换的得分
+		public final double unchangedScore;
+
+		Result(String inputCode, String middleCode, String originCode, double score, double unchangedScore) {
+			this.inputCode = inputCode;
+			this.middleCode = middleCode;
+			this.originCode = originCode;
+			this.score = score;
+			this.unchangedScore = unchangedScore;
+		}
+
+		/** 转换后是否比不转换更好，否则该文件很可能不是乱码。 */
+		public boolean improves() {
+			return score > unchangedScore;
+		}
+
+		@Override
+		public String toString() {
+			return inputCode + " -> " + middleCode + " -> " + originCode
+					+ String.format(" (score %.3f, unchanged %.3f)", score, unchangedScore);
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package convert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**<p>
+ * 直接转换压缩文件，不需要先解压到磁盘、转换后再压缩。</p><p>
+ * gzip：输入文件以.gz结尾时边读边解压，输出文件以.gz结尾时边写边压缩，两者可以只有一个是.gz。</p><p>
+ * zip：输入和输出都以.zip结尾。输入zip中的每个文件分别转换，按原来的顺序、名称、修改时间、注释和压缩方式
+ * 写入输出zip，目录原样保留。多个文件由线程池同时转换，转换结果暂存在内存中，
+ * 主线程按顺序写入(压缩在主线程中进行)；同时在处理中的文件数不超过maxInFlight。
+ * 超过maxBufferedEntry或大小未知的文件不在内存中暂存，轮到它时由主线程边读边转换边写入；
+ * 这样的文件如果原来不压缩(STORED)，写入时需要预先知道大小，所以改为压缩(DEFLATED)。</p><p>
+ * 与segmentConvert()一样，UTF-16的数据根据BOM改为LE或BE，zip中的每个文件分别判断。</p>
+ * @author 何晶   He, Jing
+ */
+public final class CompressedConvert {
+	//在内存中暂存转换结果的文件的最大大小，更大的文件由主线程流式转换
+	public static final int DEFAULT_MAX_BUFFERED_ENTRY = 32 << 20;
+	//读写压缩流的缓冲区大小
+	private static final int STREAM_BUFFER_SIZE = 64 << 10;
+	//每个线程按inputCode缓存的转码器和读取缓冲区，zip中的小文件很多时不必每个文件重新分配
+	private static final ThreadLocal<Map<String, StreamingTranscoder>> TRANSCODERS =
+			new ThreadLocal<Map<String, StreamingTranscoder>>() {
+		@Override
+		protected Map<String, StreamingTranscoder> initialValue() {
+			return new HashMap<String, StreamingTranscoder>();
+		}
+	};
+	private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(StreamingTranscoder.DEFAULT_BUFFER_SIZE);
+		}
+	};
+
+	private CompressedConvert() {
+	}
+
+	public static boolean isGzip(String path) {
+		return path.toLowerCase(Locale.ROOT).endsWith(".gz");
+	}
+
+	public static boolean isZip(String path) {
+		return path.toLowerCase(Locale.ROOT).endsWith(".zip");
+	}
+
+	/**
+	 * 打开压缩文件中的文本，用于ChainDetector：gzip为解压后的数据，zip为第一个文件。
+	 */
+	public static InputStream open(String path) throws IOException {
+		if (isZip(path)) {
+			final ZipFile zip = new ZipFile(path);
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry e = entries.nextElement();
+				if (!e.isDirectory()) {
+					return new BufferedInputStream(zip.getInputStream(e)) {
+						@Override
+						public void close() throws IOException {
+							zip.close();
+						}
+					};
+				}
+			}
+			zip.close();
+			throw new IOException("No file in " + path);
+		}
+		return new GZIPInputStream(Files.newInputStream(Paths.get(path)), STREAM_BUFFER_SIZE);
+	}
+
+	/**
+	 * 转换gzip文件。inputPath以.gz结尾时按gzip读取，outputPath以.gz结尾时按gzip写入。
+	 * @throws IOException
+	 */
+	public static void convertGzip(String inputPath, String outputPath, String inputCode, String middleCode,
+			String originCode, String outputCode) throws IOException {
+		InputStream in = Files.newInputStream(Paths.get(inputPath));
+		try {
+			in = isGzip(inputPath) ? new GZIPInputStream(in, STREAM_BUFFER_SIZE)
+					: new BufferedInputStream(in, STREAM_BUFFER_SIZE);
+			OutputStream out = Files.newOutputStream(Paths.get(outputPath));
+			try {
+				out = isGzip(outputPath) ? new GZIPOutputStream(out, STREAM_BUFFER_SIZE)
+						: new BufferedOutputStream(out, STREAM_BUFFER_SIZE);
+				convert(in, out, inputCode, middleCode, originCode, outputCode);
+			} finally {
+				//finishes the gzip trailer
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * 转换zip文件中的所有文件，写入新的zip文件。
+	 * @param threads			&nbsp;转换线程数
+	 * @param maxInFlight		&nbsp;同时处理的最大文件数
+	 * @param maxBufferedEntry	&nbsp;在内存中暂存转换结果的文件的最大大小(解压后的字节数)
+	 * @throws IOException
+	 */
+	public static void convertZip(String inputPath, String outputPath, final String inputCode,
+			final String middleCode, final String originCode, final String outputCode,
+			int threads, int maxInFlight, int maxBufferedEntry) throws IOException {
+		if (threads < 1 || maxInFlight < 1) {
+			throw new IllegalArgumentException("threads and maxInFlight must be positive, got "
+					+ threads + " and " + maxInFlight);
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new WorkerFactory());
+		try (final ZipFile zip = new ZipFile(inputPath);
+				ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+						Files.newOutputStream(Paths.get(outputPath)), STREAM_BUFFER_SIZE))) {
+			if (zip.getComment() != null) out.setComment(zip.getComment());
+			Queue<Pending> pending = new ArrayDeque<Pending>();
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				final ZipEntry entry = entries.nextElement();
+				if (pending.size() >= maxInFlight) {
+					write(pending.poll(), zip, out, inputCode, middleCode, originCode, outputCode);
+				}
+				Future<byte[]> converted = null;
+				if (!entry.isDirectory() && entry.getSize() >= 0 && entry.getSize() <= maxBufferedEntry) {
+					converted = pool.submit(() -> {
+						ByteArrayOutputStream buf = new ByteArrayOutputStream((int) entry.getSize() + 16);
+						try (InputStream in = zip.getInputStream(entry)) {
+							convert(in, buf, inputCode, middleCode, originCode, outputCode);
+						}
+						return buf.toByteArray();
+					});
+				}
+				pending.add(new Pending(entry, converted));
+			}
+			while (!pending.isEmpty()) {
+				write(pending.poll(), zip, out, inputCode, middleCode, originCode, outputCode);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * 按原来的名称、时间、注释和压缩方式写入一个文件或目录。
+	 */
+	private static void write(Pending p, ZipFile zip, ZipOutputStream out, String inputCode, String middleCode,
+			String originCode, String outputCode) throws IOException {
+		byte[] data = p.converted == null ? null : get(p.converted);
+		ZipEntry e = new ZipEntry(p.entry.getName());
+		e.setTime(p.entry.getTime());
+		if (p.entry.getComment() != null) e.setComment(p.entry.getComment());
+		if (p.entry.getExtra() != null) e.setExtra(p.entry.getExtra());
+		if (p.entry.getMethod() == ZipEntry.STORED && (data != null || p.entry.isDirectory())) {
+			//stored entries need their size and checksum before the data
+			CRC32 crc = new CRC32();
+			int size = data == null ? 0 : data.length;
+			if (data != null) crc.update(data);
+			e.setMethod(ZipEntry.STORED);
+			e.setSize(size);
+			e.setCompressedSize(size);
+			e.setCrc(crc.getValue());
+		} else {
+			//the size of a streamed entry is unknown until it is written
+			e.setMethod(ZipEntry.DEFLATED);
+		}
+		out.putNextEntry(e);
+		if (data != null) {
+			out.write(data);
+		} else if (!p.entry.isDirectory()) {
+			try (InputStream in = zip.getInputStream(p.entry)) {
+				convert(in, out, inputCode, middleCode, originCode, outputCode);
+			}
+		}
+		out.closeEntry();
+	}
+
+	/**
+	 * 转换一个完整的数据流，UTF-16根据BOM改为LE或BE。两个流都不会被关闭。
+	 */
+	private static void convert(InputStream in, OutputStream out, String inputCode, String middleCode,
+			String originCode, String outputCode) throws IOException {
+		PushbackInputStream pin = new PushbackInputStream(in, 2);
+		//文件头部BOM信息读取
+		if ("UTF-16".equals(inputCode) || "UTF-16LE".equals(inputCode) || "UTF-16BE".equals(inputCode)) {
+			byte[] head = new byte[2];
+			int n = 0;
+			int r;
+			while (n < 2 && (r = pin.read(head, n, 2 - n)) != -1) n += r;
+			if (n == 2 && head[0] == -1 && head[1] == -2) {
+				inputCode = "UTF-16LE";
+			} else if (n == 2 && head[0] == -2 && head[1] == -1) {
+				inputCode = "UTF-16BE";
+			} else {
+				//no BOM, the head is part of the text
+				pin.unread(head, 0, n);
+			}
+		}
+		StreamingTranscoder transcoder = transcoder(inputCode, middleCode, originCode, outputCode);
+		try {
+			transcoder.convert(Channels.newChannel(pin), Channels.newChannel(out), BUFFERS.get());
+		} finally {
+			//an exception may leave data behind, the next entry must start clean
+			transcoder.reset();
+		}
+	}
+
+	private static StreamingTranscoder transcoder(String inputCode, String middleCode, String originCode,
+			String outputCode) {
+		String key = inputCode + '\n' + middleCode + '\n' + originCode + '\n' + outputCode;
+		Map<String, StreamingTranscoder> cache = TRANSCODERS.get();
+		StreamingTranscoder t = cache.get(key);
+		if (t == null) {
+			t = new StreamingTranscoder(Charset.forName(inputCode), Charset.forName(middleCode),
+					Charset.forName(originCode), Charset.forName(outputCode), StreamingTranscoder.DEFAULT_BUFFER_SIZE);
+			cache.put(key, t);
+		}
+		return t;
+	}
+
+	private static byte[] get(Future<byte[]> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a converted entry");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/** 等待写入的一个文件或目录，converted为null时由主线程转换。 */
+	private static final class Pending {
+		final ZipEntry entry;
+		final Future<byte[]> converted;
+
+		Pending(ZipEntry entry, Future<byte[]> converted) {
+			this.entry = entry;
+			this.converted = converted;
+		}
+	}
+
+	//daemon threads, so an exception in the writer never leaves the JVM hanging
+	private static final class WorkerFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "convert-zip-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package convert;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**<p>
+ * ConvertDaemon的客户端。参数与twoTimeConvert相同，只是转换由已经运行的ConvertDaemon完成，
+ * 本程序只发送请求，不需要加载转换相关的类，所以启动很快。</p><p>
+ * inputFilePath, outputFilePath, [inputEncoding], [middleEncoding], [originEncoding], [outputEncoding]</p><p>
+ * 两个路径都为-时，从标准输入读取乱码，转换结果写到标准输出(STREAM请求)；否则服务直接读写文件(FILE请求)。
+ * STREAM请求中途失败时，标准输出中已经有一部分结果，但退出码仍然为1。</p><p>
+ * 选项：--port=N ConvertDaemon的端口，默认为7345；--token-file=path ConvertDaemon的令牌文件，
+ * 默认与ConvertDaemon相同；--stop 停止ConvertDaemon。
+ * 失败时打印错误信息，退出码为1。</p>
+ * @author 何晶   He, Jing
+ */
+public final class ConvertClient {
+	private final int port;
+	private final String token;
+
+	/**
+	 * @param token	&nbsp;ConvertDaemon的令牌，见ConvertDaemon.readToken()
+	 */
+	public ConvertClient(int port, String token) {
+		this.port = port;
+		this.token = token;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = ConvertDaemon.DEFAULT_PORT;
+		Path tokenFile = null;
+		boolean stop = false;
+		List<String> rest = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.startsWith("--port=")) {
+				try {
+					port = Integer.parseInt(arg.substring("--port=".length()));
+				} catch (NumberFormatException e) {
+					System.err.println("Invalid option: " + arg + ". The value should be an integer.");
+					System.exit(1);
+				}
+			} else if (arg.startsWith("--token-file=")) {
+				tokenFile = Paths.get(arg.substring("--token-file=".length()));
+			} else if ("--stop".equals(arg)) {
+				stop = true;
+			} else if (arg.startsWith("--")) {
+				System.err.println("Unknown option: " + arg + ". Supported options are: --port=N, --token-file=path, --stop.");
+				System.exit(1);
+			} else {
+				rest.add(arg);
+			}
+		}
+		if (tokenFile == null) tokenFile = ConvertDaemon.defaultTokenFile(port);
+		String token = null;
+		try {
+			token = ConvertDaemon.readToken(tokenFile);
+		} catch (IOException e) {
+			System.err.println("Cannot read the token file " + tokenFile + ". Is ConvertDaemon running? " + e);
+			System.exit(1);
+		}
+		ConvertClient client = new ConvertClient(port, token);
+		if (stop) {
+			client.stop();
+			return;
+		}
+		if (rest.size() > 6 || rest.size() < 2) {
+			System.err.println("Wrong number of arguments! Got " + rest.size()
+			+ " arguments. This script requires 2 to 6 arguments: \n"
+			+ "inputFilePath, outputFilePath, "
+			+ "[inputEncoding], [middleEncoding], [originEncoding] ,[outputEncoding]."
+			+ "Arguments should be divided by spaces.");
+			System.exit(1);
+		}
+		String[] chain = {"UTF-8", "Windows-1252", "GBK", "UTF-8"};
+		for (int i = 2; i < rest.size(); i++) {
+			chain[i - 2] = rest.get(i);
+		}
+		try {
+			if ("-".equals(rest.get(0)) && "-".equals(rest.get(1))) {
+				client.convert(System.in, System.out, chain[0], chain[1], chain[2], chain[3]);
+				System.out.flush();
+			} else {
+				System.out.println(client.convert(Paths.get(rest.get(0)).toAbsolutePath().toString(),
+						Paths.get(rest.get(1)).toAbsolutePath().toString(), chain[0], chain[1], chain[2], chain[3]));
+			}
+		} catch (IOException e) {
+			System.err.println("Conversion failed: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * 由ConvertDaemon转换它所在机器上的文件。
+	 * @return	&nbsp;服务返回的结果，即"OK 输入字节数 输出字节数"
+	 * @throws IOException	&nbsp;连接失败或服务返回ERROR时
+	 */
+	public String convert(String inputPath, String outputPath, String inputCode, String middleCode,
+			String originCode, String outputCode) throws IOException {
+		try (Socket s = connect()) {
+			send(s, "FILE\t" + inputPath + "\t" + outputPath + "\t" + inputCode + "\t" + middleCode
+					+ "\t" + originCode + "\t" + outputCode);
+			return readReply(s.getInputStream());
+		}
+	}
+
+	/**
+	 * 把in中的全部数据发送给ConvertDaemon转换，结果写入out。两个流都不会被关闭。
+	 * @throws IOException	&nbsp;连接失败或服务返回ERROR时，此时out中可能已经写入了一部分结果
+	 */
+	public void convert(final InputStream in, OutputStream out, String inputCode, String middleCode,
+			String originCode, String outputCode) throws IOException {
+		try (final Socket s = connect()) {
+			send(s, "STREAM\t" + inputCode + "\t" + middleCode + "\t" + originCode + "\t" + outputCode);
+			InputStream reply = s.getInputStream();
+			readReply(reply);
+			//send from a second thread, the daemon replies while it is still reading
+			final IOException[] failure = new IOException[1];
+			Thread sender = new Thread(() -> {
+				try {
+					OutputStream sock = s.getOutputStream();
+					byte[] buf = new byte[64 << 10];
+					int n;
+					while ((n = in.read(buf)) != -1) {
+						sock.write(buf, 0, n);
+					}
+					s.shutdownOutput();
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			}, "convert-client-sender");
+			sender.setDaemon(true);
+			sender.start();
+			DataInputStream data = new DataInputStream(new BufferedInputStream(reply));
+			byte[] buf = new byte[64 << 10];
+			try {
+				int len;
+				while ((len = data.readInt()) != 0) {
+					if (len < 0) throw new IOException("Invalid chunk length from the daemon: " + len);
+					while (len > 0) {
+						int n = data.read(buf, 0, Math.min(len, buf.length));
+						if (n < 0) throw new EOFException();
+						out.write(buf, 0, n);
+						len -= n;
+					}
+				}
+			} catch (EOFException e) {
+				throw new IOException("Connection closed by the daemon before the end of the data");
+			}
+			//the final status, ERROR if the conversion failed half way
+			readReply(data);
+			try {
+				sender.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (failure[0] != null) throw failure[0];
+		}
+	}
+
+	/** 停止ConvertDaemon。 */
+	public void stop() throws IOException {
+		try (Socket s = connect()) {
+			send(s, "STOP");
+			readReply(s.getInputStream());
+		}
+	}
+
+	private Socket connect() throws IOException {
+		return new Socket(InetAddress.getLoopbackAddress(), port);
+	}
+
+	private void send(Socket s, String header) throws IOException {
+		s.getOutputStream().write((token + "\t" + header + "\n").getBytes(StandardCharsets.UTF_8));
+		s.getOutputStream().flush();
+	}
+
+	/** 读取一行回复，ERROR时抛出IOException。 */
+	private static String readReply(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) throw new IOException("Connection closed by the daemon");
+			line.write(b);
+		}
+		String reply = new String(line.toByteArray(), StandardCharsets.UTF_8);
+		if (!reply.startsWith("OK")) throw new IOException(reply);
+		return reply;
+	}
+}
@@ -0,0 +1,360 @@
+package convert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**<p>
+ * 常驻的转换服务。每次运行twoTimeConvert都要启动JVM、加载类，realConvert2()在JIT编译之前还是解释执行，
+ * 对于大量的小文件，这些时间远远超过转换本身。本服务启动一次后一直运行，
+ * 在本机回环地址(127.0.0.1)上监听TCP端口，接受ConvertClient或其他程序提交的转换任务，
+ * 多个任务由大小有限的线程池同时处理。同一编码链的MojibakeConverter只创建一次。
+ * 所有任务的统计数据可以通过JMX查看(convert:type=ConvertMetrics)。</p><p>
+ * 回环地址并不能阻止本机的其他用户连接，所以服务启动时生成一个随机的令牌，写入只有当前用户可以读写(0600)的令牌文件，
+ * 默认为用户主目录下的.convert-daemon-端口.token，服务停止时删除。请求头的第一个字段必须是这个令牌，否则拒绝请求。
+ * 还可以用--root把FILE请求能读写的文件限制在一个目录之内。</p><p>
+ * 协议：每个连接一个任务。客户端先发送一行以UTF-8编码、以\n结尾、用制表符分隔的请求头，第一个字段为令牌，然后是：</p><p>
+ * FILE inputPath outputPath inputCode middleCode originCode outputCode：转换服务所在机器上的文件，
+ * 路径应为绝对路径，输入和输出不能是同一个文件。完成后返回一行"OK 输入字节数 输出字节数"。</p><p>
+ * STREAM inputCode middleCode originCode outputCode：请求头之后的数据为需转换的乱码，
+ * 客户端发送完毕后应关闭socket的输出(shutdownOutput)。服务先返回一行"OK"，然后把转换后的数据分块返回，
+ * 每块为4字节(big-endian)的长度加上数据，长度为0的块表示结束，之后是一行最终结果"OK 输出字节数"或"ERROR 原因"，
+ * 最后关闭连接。这样转换中途出错时，错误信息不会混在数据中，客户端也能知道转换失败。</p><p>
+ * STOP：停止服务。</p><p>
+ * 出错时返回一行"ERROR 原因"并关闭连接。请求头必须在10秒之内发送完毕，否则关闭连接。</p><p>
+ * 本程序可以使用以下选项：--port=N 监听的端口，默认为7345；--threads=N 同时处理的任务数，默认为CPU核数；
+ * --token-file=path 令牌文件的路径；--root=path FILE请求的输入、输出文件必须在这个目录之内，默认不限制。</p>
+ * @author 何晶   He, Jing
+ */
+public final class ConvertDaemon {
+	public static final int DEFAULT_PORT = 7345;
+	//请求头的最大长度
+	private static final int MAX_HEADER = 64 << 10;
+	//读取请求头的超时(毫秒)。没有超时的话，任何人都可以打开threads个空闲连接占满线程池
+	static final int HEADER_TIMEOUT = 10000;
+
+	private final ServerSocket server;
+	private final ExecutorService pool;
+	private final String token;
+	private final Path tokenFile;
+	//FILE请求能读写的目录(真实路径)，null为不限制
+	private final Path root;
+	private final ConcurrentMap<String, MojibakeConverter> converters =
+			new ConcurrentHashMap<String, MojibakeConverter>();
+
+	/**
+	 * 在回环地址上监听port，生成令牌并写入令牌文件。port为0时由系统分配，可以用getPort()取得。
+	 * @param tokenFile	&nbsp;令牌文件，null时使用defaultTokenFile(getPort())
+	 * @param root		&nbsp;FILE请求能读写的目录，null时不限制
+	 * @throws IOException	&nbsp;端口被占用、无法写入令牌文件等
+	 */
+	public ConvertDaemon(int port, int threads, Path tokenFile, Path root) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive, got " + threads);
+		}
+		this.root = root == null ? null : root.toRealPath();
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		try {
+			this.tokenFile = tokenFile == null ? defaultTokenFile(getPort()) : tokenFile;
+			byte[] random = new byte[32];
+			new SecureRandom().nextBytes(random);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : random) {
+				hex.append(String.format("%02x", b & 0xFF));
+			}
+			token = hex.toString();
+			writeToken(this.tokenFile, token);
+		} catch (IOException | RuntimeException e) {
+			server.close();
+			throw e;
+		}
+		pool = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * @return	&nbsp;端口为port的服务默认的令牌文件，即用户主目录下的.convert-daemon-port.token
+	 */
+	public static Path defaultTokenFile(int port) {
+		return Paths.get(System.getProperty("user.home"), ".convert-daemon-" + port + ".token");
+	}
+
+	/**
+	 * 读取令牌文件，供客户端使用。
+	 * @throws IOException	&nbsp;文件不存在(服务没有运行)等
+	 */
+	public static String readToken(Path tokenFile) throws IOException {
+		return new String(Files.readAllBytes(tokenFile), StandardCharsets.US_ASCII).trim();
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		int threads = Runtime.getRuntime().availableProcessors();
+		Path tokenFile = null;
+		Path root = null;
+		for (String arg : args) {
+			try {
+				if (arg.startsWith("--port=")) {
+					port = Integer.parseInt(arg.substring("--port=".length()));
+				} else if (arg.startsWith("--threads=")) {
+					threads = Integer.parseInt(arg.substring("--threads=".length()));
+				} else if (arg.startsWith("--token-file=")) {
+					tokenFile = Paths.get(arg.substring("--token-file=".length()));
+				} else if (arg.startsWith("--root=")) {
+					root = Paths.get(arg.substring("--root=".length()));
+				} else {
+					System.err.println("Unknown option: " + arg + ". Supported options are: "
+							+ "--port=N, --threads=N, --token-file=path, --root=path.");
+					return;
+				}
+			} catch (NumberFormatException e) {
+				System.err.println("Invalid option: " + arg + ". The value should be an integer.");
+				return;
+			}
+		}
+		ConvertDaemon daemon = new ConvertDaemon(port, threads, tokenFile, root);
+		ConvertMetrics.registerMBean();
+		System.out.println("Listening on " + daemon.server.getInetAddress().getHostAddress() + ":" + daemon.getPort()
+				+ " with " + threads + " threads. Token file: " + daemon.tokenFile
+				+ (daemon.root == null ? "" : ", files restricted to " + daemon.root) + ".");
+		daemon.serve();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public Path getTokenFile() {
+		return tokenFile;
+	}
+
+	/**
+	 * 接受连接，直到收到STOP或调用stop()。结束时删除令牌文件。
+	 * @throws IOException
+	 */
+	public void serve() throws IOException {
+		try {
+			while (!server.isClosed()) {
+				final Socket socket;
+				try {
+					socket = server.accept();
+				} catch (SocketException e) {
+					//closed by stop()
+					if (server.isClosed()) break;
+					throw e;
+				}
+				pool.execute(() -> handle(socket));
+			}
+		} finally {
+			pool.shutdown();
+			Files.deleteIfExists(tokenFile);
+		}
+	}
+
+	/** 停止接受新的任务。正在处理的任务会继续完成。 */
+	public void stop() throws IOException {
+		server.close();
+	}
+
+	private void handle(Socket socket) {
+		try (Socket s = socket) {
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			OutputStream out = new BufferedOutputStream(s.getOutputStream());
+			//not null once a STREAM reply has started sending chunks
+			ChunkedOutputStream chunks = null;
+			try {
+				s.setSoTimeout(HEADER_TIMEOUT);
+				String[] line = readHeader(in).split("\t", -1);
+				if (!MessageDigest.isEqual(line[0].getBytes(StandardCharsets.UTF_8),
+						token.getBytes(StandardCharsets.UTF_8))) {
+					reply(out, "ERROR Invalid token");
+					return;
+				}
+				//STREAM data may come as slowly as the client produces it
+				s.setSoTimeout(0);
+				String[] header = Arrays.copyOfRange(line, 1, line.length);
+				if (header.length == 0) {
+					reply(out, "ERROR Empty request");
+				} else if ("FILE".equals(header[0]) && header.length == 7) {
+					MojibakeConverter c = converter(header[3], header[4], header[5], header[6]);
+					Path input = checkPath(header[1]);
+					Path output = checkPath(header[2]);
+					//opening the output would truncate the input before it is read
+					if (Files.exists(output) && Files.isSameFile(input, output)) {
+						throw new IOException("Input and output are the same file: " + input);
+					}
+					try (InputStream fis = Files.newInputStream(input);
+							OutputStream fos = new BufferedOutputStream(Files.newOutputStream(output))) {
+						c.convert(fis, fos);
+					}
+					reply(out, "OK " + Files.size(input) + " " + Files.size(output));
+				} else if ("STREAM".equals(header[0]) && header.length == 5) {
+					MojibakeConverter c = converter(header[1], header[2], header[3], header[4]);
+					reply(out, "OK");
+					chunks = new ChunkedOutputStream(out);
+					c.convert(in, chunks);
+					chunks.finish();
+					long total = chunks.getTotal();
+					chunks = null;
+					reply(out, "OK " + total);
+				} else if ("STOP".equals(header[0]) && header.length == 1) {
+					reply(out, "OK");
+					stop();
+				} else {
+					reply(out, "ERROR Unknown request: " + header[0]);
+				}
+			} catch (IOException | RuntimeException e) {
+				//the client may already be gone, then this fails as well
+				if (chunks != null) chunks.finish();
+				reply(out, "ERROR " + e.getClass().getSimpleName() + ": " + e.getMessage());
+			}
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("Connection failed: " + e);
+		}
+	}
+
+	/**
+	 * @throws java.nio.charset.UnsupportedCharsetException 编码不受支持时
+	 */
+	private MojibakeConverter converter(String inputCode, String middleCode, String originCode, String outputCode) {
+		String key = inputCode + '\t' + middleCode + '\t' + originCode + '\t' + outputCode;
+		MojibakeConverter c = converters.get(key);
+		if (c == null) {
+			c = MojibakeConverter.of(inputCode, middleCode, originCode, outputCode);
+			converters.putIfAbsent(key, c);
+		}
+		return c;
+	}
+
+	/**
+	 * 设置了root时，路径(按真实路径，即解析符号链接之后)必须在root之内。
+	 * @return	&nbsp;真实路径，文件不存在时为所在目录的真实路径加上文件名
+	 * @throws IOException	&nbsp;不是绝对路径、在root之外等
+	 */
+	private Path checkPath(String path) throws IOException {
+		Path p = Paths.get(path);
+		if (!p.isAbsolute()) throw new IOException("Path is not absolute: " + path);
+		Path real;
+		if (Files.exists(p)) {
+			real = p.toRealPath();
+		} else {
+			Path parent = p.getParent();
+			real = parent == null ? p : parent.toRealPath().resolve(p.getFileName());
+		}
+		if (root != null && !real.startsWith(root)) throw new IOException("Path is outside " + root + ": " + path);
+		return real;
+	}
+
+	/**
+	 * 把令牌写入临时文件再改名，文件只有当前用户可以读写(在不支持POSIX权限的系统中依赖用户目录本身的权限)。
+	 */
+	private static void writeToken(Path file, String token) throws IOException {
+		Path dir = file.toAbsolutePath().getParent();
+		Path tmp = dir.getFileSystem().supportedFileAttributeViews().contains("posix")
+				? Files.createTempFile(dir, ".convert-daemon-", ".tmp",
+						PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+				: Files.createTempFile(dir, ".convert-daemon-", ".tmp");
+		try {
+			Files.write(tmp, (token + "\n").getBytes(StandardCharsets.US_ASCII));
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/** 读取以\n结尾的请求头，不多读后面的数据。 */
+	private static String readHeader(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) throw new IOException("Connection closed before the end of the request header");
+			if (line.size() >= MAX_HEADER) throw new IOException("Request header too long");
+			line.write(b);
+		}
+		return new String(line.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void reply(OutputStream out, String line) throws IOException {
+		out.write((line.replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	/**
+	 * STREAM请求的数据块：写入的数据先放入缓冲区，缓冲区满或flush()时作为一块发送。
+	 */
+	private static final class ChunkedOutputStream extends OutputStream {
+		private static final int CHUNK_SIZE = 64 << 10;
+		private final DataOutputStream out;
+		private final byte[] buffer = new byte[CHUNK_SIZE];
+		private int count;
+		private long total;
+
+		ChunkedOutputStream(OutputStream out) {
+			this.out = new DataOutputStream(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) sendChunk();
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length) sendChunk();
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			sendChunk();
+			out.flush();
+		}
+
+		/** 发送剩下的数据和表示结束的空块。 */
+		void finish() throws IOException {
+			sendChunk();
+			out.writeInt(0);
+			out.flush();
+		}
+
+		long getTotal() {
+			return total;
+		}
+
+		private void sendChunk() throws IOException {
+			if (count == 0) return;
+			out.writeInt(count);
+			out.write(buffer, 0, count);
+			total += count;
+			count = 0;
+		}
+	}
+}
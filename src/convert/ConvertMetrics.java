@@ -0,0 +1,233 @@
+package convert;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**<p>
+ * 转换过程的统计数据：输入输出字节数、分块数、每块转换耗时的直方图、查找分块位置的距离和失败次数、
+ * 替换为?或U+FFFD的字符数以及吞吐量。</p><p>
+ * TranscodeKernel、StreamingTranscoder和SegmentSplitter在转换时自动记录到global()中。
+ * 调用registerMBean()后注册为JMX MBean(convert:type=ConvertMetrics)，可以用jconsole等工具查看。
+ * 初始化JMX需要一定时间，所以只在长时间运行时注册，见ConvertDaemon和twoTimeConvert的--jmx选项。
+ * 运行结束时可以用toJson()输出一行机器可读的汇总，见twoTimeConvert的--report选项。</p><p>
+ * 所有方法都是线程安全的。</p>
+ * @author 何晶   He, Jing
+ */
+public final class ConvertMetrics implements ConvertMetricsMBean {
+	public static final String OBJECT_NAME = "convert:type=ConvertMetrics";
+	//直方图的区间数，最后一个区间包含所有不小于2^(BUCKETS-2)微秒(约16秒)的块
+	private static final int BUCKETS = 26;
+	private static final ConvertMetrics GLOBAL = new ConvertMetrics();
+	private static boolean registered;
+
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder segments = new LongAdder();
+	private final LongAdder replacements = new LongAdder();
+	private final LongAdder splitScans = new LongAdder();
+	private final LongAdder splitScanDistance = new LongAdder();
+	private final AtomicLong maxSplitScanDistance = new AtomicLong();
+	private final LongAdder splitFailures = new LongAdder();
+	private final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+	//第一块开始转换的时间，0表示尚未开始
+	private final AtomicLong startNanos = new AtomicLong();
+
+	public ConvertMetrics() {
+	}
+
+	/** 全局的统计数据。 */
+	public static ConvertMetrics global() {
+		return GLOBAL;
+	}
+
+	/**
+	 * 把global()注册为JMX MBean。重复调用时不做任何事。注册失败时打印错误信息，统计数据仍然可用。
+	 */
+	public static synchronized void registerMBean() {
+		if (registered) return;
+		registered = true;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(GLOBAL, new ObjectName(OBJECT_NAME));
+		} catch (JMException | SecurityException e) {
+			//e.g. another class loader registered the name first
+			System.err.println("Failed to register " + OBJECT_NAME + ": " + e);
+		}
+	}
+
+	/**
+	 * 记录一块转换。
+	 * @param in		&nbsp;输入字节数
+	 * @param out		&nbsp;输出字节数
+	 * @param nanos		&nbsp;耗时(纳秒)
+	 */
+	public void recordSegment(long in, long out, long nanos) {
+		startNanos.compareAndSet(0, System.nanoTime() - nanos);
+		bytesRead.add(in);
+		bytesWritten.add(out);
+		segments.increment();
+		long micros = nanos / 1000;
+		int bucket = micros == 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+		latency.incrementAndGet(bucket);
+	}
+
+	/** 记录不属于某一块的输出字节数，例如FanOutConvert中每个输出文件写入的字节。 */
+	public void recordBytesWritten(long n) {
+		bytesWritten.add(n);
+	}
+
+	/** 记录替换为?或U+FFFD的字符数。 */
+	public void recordReplacements(long n) {
+		if (n > 0) replacements.add(n);
+	}
+
+	/**
+	 * 记录一次分块位置的查找。
+	 * @param distance	&nbsp;从块的末尾向前查找的字节数
+	 */
+	public void recordSplitScan(long distance) {
+		splitScans.increment();
+		splitScanDistance.add(distance);
+		long max;
+		while (distance > (max = maxSplitScanDistance.get())
+				&& !maxSplitScanDistance.compareAndSet(max, distance));
+	}
+
+	/** 记录一次分块失败。 */
+	public void recordSplitFailure() {
+		splitFailures.increment();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getSegments() {
+		return segments.sum();
+	}
+
+	@Override
+	public long getReplacements() {
+		return replacements.sum();
+	}
+
+	@Override
+	public long getSplitScans() {
+		return splitScans.sum();
+	}
+
+	@Override
+	public double getAverageSplitScanDistance() {
+		long scans = splitScans.sum();
+		return scans == 0 ? 0 : (double) splitScanDistance.sum() / scans;
+	}
+
+	@Override
+	public long getMaxSplitScanDistance() {
+		return maxSplitScanDistance.get();
+	}
+
+	@Override
+	public long getSplitFailures() {
+		return splitFailures.sum();
+	}
+
+	@Override
+	public long[] getLatencyHistogram() {
+		long[] h = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			h[i] = latency.get(i);
+		}
+		return h;
+	}
+
+	@Override
+	public long getLatencyP50Micros() {
+		return percentile(0.5);
+	}
+
+	@Override
+	public long getLatencyP99Micros() {
+		return percentile(0.99);
+	}
+
+	@Override
+	public double getMegabytesPerSecond() {
+		long start = startNanos.get();
+		if (start == 0) return 0;
+		return megabytesPerSecond(getBytesRead(), System.nanoTime() - start);
+	}
+
+	@Override
+	public void reset() {
+		bytesRead.reset();
+		bytesWritten.reset();
+		segments.reset();
+		replacements.reset();
+		splitScans.reset();
+		splitScanDistance.reset();
+		maxSplitScanDistance.set(0);
+		splitFailures.reset();
+		for (int i = 0; i < BUCKETS; i++) {
+			latency.set(i, 0);
+		}
+		startNanos.set(0);
+	}
+
+	/**
+	 * 一行JSON格式的汇总。
+	 * @param elapsedNanos	&nbsp;整个运行的耗时，用于计算吞吐量
+	 */
+	public String toJson(long elapsedNanos) {
+		long[] h = getLatencyHistogram();
+		StringBuilder histogram = new StringBuilder();
+		for (int i = 0; i < h.length; i++) {
+			if (i > 0) histogram.append(',');
+			histogram.append(h[i]);
+		}
+		return "{\"bytesRead\":" + getBytesRead()
+				+ ",\"bytesWritten\":" + getBytesWritten()
+				+ ",\"segments\":" + getSegments()
+				+ ",\"replacements\":" + getReplacements()
+				+ ",\"splitScans\":" + getSplitScans()
+				+ ",\"averageSplitScanDistance\":" + String.format(Locale.ROOT, "%.1f", getAverageSplitScanDistance())
+				+ ",\"maxSplitScanDistance\":" + getMaxSplitScanDistance()
+				+ ",\"splitFailures\":" + getSplitFailures()
+				+ ",\"latencyP50Micros\":" + getLatencyP50Micros()
+				+ ",\"latencyP99Micros\":" + getLatencyP99Micros()
+				+ ",\"latencyHistogramLog2Micros\":[" + histogram + "]"
+				+ ",\"elapsedMillis\":" + elapsedNanos / 1000000
+				+ ",\"megabytesPerSecond\":" + String.format(Locale.ROOT, "%.1f", megabytesPerSecond(getBytesRead(), elapsedNanos))
+				+ "}";
+	}
+
+	private long percentile(double p) {
+		long[] h = getLatencyHistogram();
+		long total = 0;
+		for (long n : h) total += n;
+		if (total == 0) return 0;
+		long rank = (long) Math.ceil(p * total);
+		long seen = 0;
+		for (int i = 0; i < h.length; i++) {
+			seen += h[i];
+			if (seen >= rank) return 1L << i;
+		}
+		return 1L << (h.length - 1);
+	}
+
+	private static double megabytesPerSecond(long bytes, long nanos) {
+		return nanos <= 0 ? 0 : bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+	}
+}
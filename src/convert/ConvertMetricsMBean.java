@@ -0,0 +1,47 @@
+package convert;
+
+/**
+ * ConvertMetrics的JMX接口，在jconsole等工具中显示为convert:type=ConvertMetrics。
+ * @author 何晶   He, Jing
+ */
+public interface ConvertMetricsMBean {
+
+	/** 已转换的输入字节数。 */
+	long getBytesRead();
+
+	/** 转换后输出的字节数。 */
+	long getBytesWritten();
+
+	/** 已转换的分块数。 */
+	long getSegments();
+
+	/** 转换时替换为?或U+FFFD的字符数，即丢失的数据。 */
+	long getReplacements();
+
+	/** 查找分块位置的次数。 */
+	long getSplitScans();
+
+	/** 查找分块位置时平均向前查找的字节数。 */
+	double getAverageSplitScanDistance();
+
+	/** 查找分块位置时最多向前查找的字节数。 */
+	long getMaxSplitScanDistance();
+
+	/** 找不到分块位置(File Segmentation Failed)的次数。 */
+	long getSplitFailures();
+
+	/** 每块转换耗时的直方图，第i个元素为耗时小于2^i微秒(且不小于2^(i-1)微秒)的块数。 */
+	long[] getLatencyHistogram();
+
+	/** 每块转换耗时的中位数(微秒)，按直方图估算，为所在区间的上限。 */
+	long getLatencyP50Micros();
+
+	/** 每块转换耗时的99百分位数(微秒)，按直方图估算，为所在区间的上限。 */
+	long getLatencyP99Micros();
+
+	/** 从第一块开始转换(或reset())到现在的平均吞吐量，单位为MB/s。 */
+	double getMegabytesPerSecond();
+
+	/** 清零所有计数。 */
+	void reset();
+}
@@ -0,0 +1,294 @@
+package convert;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**<p>
+ * 一次读取和修复，同时输出多种编码的多个文件，例如同时输出旧系统使用的GBK和新系统使用的UTF-8。</p><p>
+ * 主线程读取输入文件，用StreamingTranscoder.decode()执行前三步(inputCode -&gt; middleCode -&gt; originCode)，
+ * 修复后的文本按块(Chunk)交给每个输出各自的线程，由它们同时按各自的outputCode编码并写入文件。
+ * 读取和解码只做一次，与输出的数量无关。</p><p>
+ * 每一块由所有输出共享，最后一个写完的线程把它放回空闲队列重复使用。
+ * 空闲的块最多maxInFlight个，所以占用的内存与文件大小无关；某个输出较慢时，主线程会等待它。</p><p>
+ * 无法映射的字符与String.getBytes()一样替换为?等替换字符。</p>
+ * @author 何晶   He, Jing
+ */
+public final class FanOutConvert {
+	//每一块的字符数
+	public static final int DEFAULT_CHUNK_SIZE = 64 << 10;
+	//默认最多4块在处理中
+	public static final int DEFAULT_IN_FLIGHT = 4;
+
+	private FanOutConvert() {
+	}
+
+	/**
+	 * @param inputPath		&nbsp;输入文件路径
+	 * @param inputCode		&nbsp;乱码文件目前的编码。UTF-16会根据BOM改为LE或BE
+	 * @param middleCode	&nbsp;middleCode
+	 * @param originCode	&nbsp;originCode
+	 * @param outputPaths	&nbsp;输出文件路径，已存在的文件会被覆盖
+	 * @param outputCodes	&nbsp;每个输出文件的编码，与outputPaths一一对应
+	 * @param chunkSize		&nbsp;每一块的字符数
+	 * @param maxInFlight	&nbsp;同时处理的最大块数
+	 * @throws IOException
+	 */
+	public static void convert(String inputPath, String inputCode, String middleCode, String originCode,
+			List<String> outputPaths, List<String> outputCodes, int chunkSize, int maxInFlight) throws IOException {
+		if (outputPaths.isEmpty() || outputPaths.size() != outputCodes.size()) {
+			throw new IllegalArgumentException("Each output needs one encoding, got "
+					+ outputPaths.size() + " outputs and " + outputCodes.size() + " encodings");
+		}
+		if (chunkSize < 16 || maxInFlight < 1) {
+			throw new IllegalArgumentException("chunkSize must be at least 16 and maxInFlight positive, got "
+					+ chunkSize + " and " + maxInFlight);
+		}
+		int n = outputPaths.size();
+		List<Charset> charsets = new ArrayList<Charset>(n);
+		for (String code : outputCodes) {
+			charsets.add(Charset.forName(code));
+		}
+		BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(maxInFlight);
+		for (int i = 0; i < maxInFlight; i++) {
+			free.add(new Chunk(chunkSize));
+		}
+		List<Writer> writers = new ArrayList<Writer>(n);
+		List<Future<?>> done = new ArrayList<Future<?>>(n);
+		ExecutorService pool = Executors.newFixedThreadPool(n, new WriterFactory());
+		try (FileChannel in = FileChannel.open(Paths.get(inputPath), StandardOpenOption.READ)) {
+			//open every output first, so a bad path fails before any work is done
+			for (int i = 0; i < n; i++) {
+				writers.add(new Writer(FileChannel.open(Paths.get(outputPaths.get(i)), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING),
+						charsets.get(i), chunkSize, maxInFlight + 1, free));
+			}
+			for (Writer w : writers) {
+				done.add(pool.submit(w));
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(StreamingTranscoder.DEFAULT_BUFFER_SIZE);
+			inputCode = skipBom(in, inputCode, buffer);
+			StreamingTranscoder transcoder = new StreamingTranscoder(Charset.forName(inputCode),
+					Charset.forName(middleCode), Charset.forName(originCode), charsets.get(0),
+					StreamingTranscoder.DEFAULT_BUFFER_SIZE);
+			Splitter splitter = new Splitter(free, writers);
+			while (in.read(buffer) != -1) {
+				buffer.flip();
+				transcoder.decode(buffer, false, splitter);
+				buffer.compact();
+				for (Writer w : writers) {
+					//stop reading as soon as an output fails
+					if (w.failure != null) throw w.failure;
+				}
+			}
+			buffer.flip();
+			transcoder.decode(buffer, true, splitter);
+			splitter.publish();
+			for (Writer w : writers) {
+				w.queue.put(Chunk.END);
+			}
+			for (Future<?> f : done) {
+				await(f);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the outputs");
+		} finally {
+			pool.shutdownNow();
+			for (Writer w : writers) {
+				w.out.close();
+			}
+		}
+	}
+
+	/**
+	 * 跳过UTF-16文件头部的BOM，与segmentConvert()相同。
+	 * @return	&nbsp;根据BOM确定的inputCode
+	 */
+	private static String skipBom(FileChannel in, String inputCode, ByteBuffer buffer) throws IOException {
+		if ("UTF-16".equals(inputCode) || "UTF-16LE".equals(inputCode) || "UTF-16BE".equals(inputCode)) {
+			buffer.limit(2);
+			while (buffer.hasRemaining() && in.read(buffer) != -1);
+			if (buffer.position() == 2 && buffer.get(0) == -1 && buffer.get(1) == -2) {
+				buffer.clear();
+				return "UTF-16LE";
+			} else if (buffer.position() == 2 && buffer.get(0) == -2 && buffer.get(1) == -1) {
+				buffer.clear();
+				return "UTF-16BE";
+			}
+			//no BOM, the head is part of the text
+			buffer.limit(buffer.capacity());
+		}
+		return inputCode;
+	}
+
+	/**
+	 * 等待一个输出线程结束，把它的异常转为IOException。
+	 */
+	private static void await(Future<?> f) throws IOException, InterruptedException {
+		try {
+			f.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/** 修复后的一块文本，由所有输出共享。 */
+	private static final class Chunk {
+		//所有块都已发出
+		static final Chunk END = new Chunk(0);
+
+		final char[] chars;
+		int length;
+		//还没有写完这一块的输出数
+		final AtomicInteger pending = new AtomicInteger();
+
+		Chunk(int size) {
+			chars = new char[size];
+		}
+	}
+
+	/**
+	 * 把decode()的输出复制到块中，写满一块就交给所有输出。
+	 */
+	private static final class Splitter implements StreamingTranscoder.CharSink {
+		private final BlockingQueue<Chunk> free;
+		private final List<Writer> writers;
+		private Chunk current;
+
+		Splitter(BlockingQueue<Chunk> free, List<Writer> writers) {
+			this.free = free;
+			this.writers = writers;
+		}
+
+		@Override
+		public void write(CharBuffer chars) throws IOException {
+			while (chars.hasRemaining()) {
+				if (current == null) {
+					current = take(free);
+					current.length = 0;
+				}
+				int n = Math.min(chars.remaining(), current.chars.length - current.length);
+				//a chunk never ends in the middle of a surrogate pair
+				if (n < chars.remaining() && Character.isHighSurrogate(chars.get(chars.position() + n - 1))) n--;
+				chars.get(current.chars, current.length, n);
+				current.length += n;
+				if (chars.hasRemaining() || current.length == current.chars.length) publish();
+			}
+		}
+
+		void publish() throws IOException {
+			if (current == null || current.length == 0) return;
+			current.pending.set(writers.size());
+			for (Writer w : writers) {
+				put(w.queue, current);
+			}
+			current = null;
+		}
+
+		private static Chunk take(BlockingQueue<Chunk> queue) throws InterruptedIOException {
+			try {
+				return queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a free chunk");
+			}
+		}
+
+		private static void put(BlockingQueue<Chunk> queue, Chunk chunk) throws InterruptedIOException {
+			try {
+				queue.put(chunk);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while handing a chunk to an output");
+			}
+		}
+	}
+
+	/**
+	 * 一个输出：按outputCode编码每一块并写入文件。出错后仍然取出并释放所有块，以免主线程一直等待。
+	 */
+	private static final class Writer implements Callable<Void> {
+		final BlockingQueue<Chunk> queue;
+		final FileChannel out;
+		//第一个错误，主线程看到后停止读取
+		volatile IOException failure;
+		private final CharsetEncoder encoder;
+		private final ByteBuffer bytes;
+		private final BlockingQueue<Chunk> free;
+
+		Writer(FileChannel out, Charset charset, int chunkSize, int capacity, BlockingQueue<Chunk> free) {
+			this.out = out;
+			//unmappable chars become the encoder's replacement, same as String.getBytes()
+			encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			bytes = ByteBuffer.allocate((int) Math.ceil(chunkSize * (double) encoder.maxBytesPerChar()) + 16);
+			queue = new ArrayBlockingQueue<Chunk>(capacity);
+			this.free = free;
+		}
+
+		@Override
+		public Void call() throws IOException, InterruptedException {
+			Chunk chunk;
+			while ((chunk = queue.take()) != Chunk.END) {
+				try {
+					if (failure == null) write(CharBuffer.wrap(chunk.chars, 0, chunk.length), false);
+				} catch (IOException e) {
+					failure = e;
+				} finally {
+					if (chunk.pending.decrementAndGet() == 0) free.add(chunk);
+				}
+			}
+			if (failure == null) write(CharBuffer.wrap(new char[0]), true);
+			if (failure != null) throw failure;
+			return null;
+		}
+
+		private void write(CharBuffer chars, boolean end) throws IOException {
+			bytes.clear();
+			CoderResult cr = encoder.encode(chars, bytes, end);
+			if (end) cr = encoder.flush(bytes);
+			if (cr.isOverflow()) throw new IOException("Output buffer too small for " + encoder.charset());
+			bytes.flip();
+			ConvertMetrics.global().recordBytesWritten(bytes.remaining());
+			while (bytes.hasRemaining()) {
+				out.write(bytes);
+			}
+		}
+	}
+
+	//daemon threads, so a stuck output never leaves the JVM hanging
+	private static final class WriterFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "convert-output-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package convert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**<p>
+ * 增量转换，用于不断增长的日志文件。</p><p>
+ * 每次运行只转换上次运行之后新增的数据，并追加到输出文件末尾，而不是从头转换整个文件。
+ * 进度保存在输出文件旁边的检查点文件(outputPath.checkpoint)中：已读取的输入位置(offset)，
+ * 以及最后一个ASCII字符之后尚未转换的字节(pending，即原来segmentConvert()中的left0/left1)。
+ * 下次运行时把pending与新增的数据接在一起，仍然以ASCII字符分块，所以结果与一次转换整个文件相同。</p><p>
+ * 检查点文件在输出数据写入磁盘之后才替换，替换是原子的。检查点中还保存了当时输出文件的长度(outputLength)，
+ * 如果在写入输出之后、替换检查点之前崩溃，输出文件中会多出上次没有记录的结果，
+ * 下次运行时先把输出文件截断到outputLength，再写入，所以不会重复。
+ * 检查点中还保存了输入文件的指纹：文件标识(fileKey，如inode)和文件开头最多4KB的CRC32。
+ * 输入文件比检查点中的位置短，或者指纹改变时，认为文件已被轮换(rotate)，从头开始转换并覆盖输出文件。</p><p>
+ * 运行期间持有锁文件(outputPath.checkpoint.lock)上的文件锁，同一个输出文件同时只能有一个增量转换，
+ * 否则两个进程会从同一个检查点开始，重复写入同一段数据。</p><p>
+ * 文件末尾没有ASCII字符结尾的部分会留在pending中，等待后续数据；flush为true时则直接转换。</p>
+ * @author 何晶   He, Jing
+ */
+public final class IncrementalConvert {
+	public static final String CHECKPOINT_SUFFIX = ".checkpoint";
+	public static final String LOCK_SUFFIX = ".lock";
+	//输入文件指纹所用的开头部分的最大长度
+	static final int FINGERPRINT_SIZE = 4096;
+	//每次读取的窗口大小为1MB
+	public static final int DEFAULT_WINDOW_SIZE = 1 << 20;
+	//--follow模式默认每秒检查一次
+	public static final long DEFAULT_INTERVAL = 1000;
+
+	private IncrementalConvert() {
+	}
+
+	/**
+	 * 转换上次运行之后新增的数据。
+	 * @param inputPath		&nbsp;输入文件路径 	&nbsp; Input File Path
+	 * @param outputPath	&nbsp;输出文件路径，结果追加到末尾	&nbsp; Output File Path
+	 * @param kernel		&nbsp;转码核心，决定了编码链。UTF-16输入会根据BOM改为LE或BE
+	 * @param windowSize	&nbsp;每次读取的大小(字节)
+	 * @param flush			&nbsp;是否把末尾不以ASCII字符结尾的部分也转换
+	 * @return	&nbsp;本次读取的输入字节数
+	 * @throws IOException	&nbsp;读写失败，检查点文件属于另一个编码链，输出文件比检查点中记录的短，
+	 * 或者同一个输出文件的另一个增量转换正在运行时
+	 */
+	public static long convert(String inputPath, String outputPath, TranscodeKernel kernel,
+			int windowSize, boolean flush) throws IOException {
+		if (windowSize < 2) {
+			throw new IllegalArgumentException("Window size must be at least 2 bytes, got " + windowSize);
+		}
+		Path checkpointPath = Paths.get(outputPath + CHECKPOINT_SUFFIX);
+		Path lockPath = Paths.get(outputPath + CHECKPOINT_SUFFIX + LOCK_SUFFIX);
+		//the checkpoint itself is replaced on every run, so the lock lives in a file of its own
+		try (FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+				FileLock lock = tryLock(lockChannel, outputPath)) {
+			return convert(inputPath, outputPath, checkpointPath, kernel, windowSize, flush);
+		}
+	}
+
+	private static FileLock tryLock(FileChannel lockChannel, String outputPath) throws IOException {
+		FileLock lock;
+		try {
+			lock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			//held by another thread of this process
+			lock = null;
+		}
+		if (lock == null) {
+			throw new IOException("Another incremental conversion to " + outputPath + " is running");
+		}
+		return lock;
+	}
+
+	private static long convert(String inputPath, String outputPath, Path checkpointPath, TranscodeKernel kernel,
+			int windowSize, boolean flush) throws IOException {
+		Checkpoint cp = Checkpoint.load(checkpointPath);
+		Path input = Paths.get(inputPath);
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+			long size = in.size();
+			Object fileKey = Files.readAttributes(input, BasicFileAttributes.class).fileKey();
+			if (cp != null && size < cp.offset) {
+				System.err.println("Input file " + inputPath + " is shorter than the checkpoint offset "
+						+ cp.offset + ", assuming it was rotated. Converting from the beginning.");
+				cp = null;
+			} else if (cp != null && !cp.sameFile(in, fileKey)) {
+				System.err.println("Input file " + inputPath + " is not the file in the checkpoint"
+						+ ", assuming it was rotated. Converting from the beginning.");
+				cp = null;
+			}
+			boolean fresh = cp == null;
+			if (fresh) {
+				cp = Checkpoint.start(in, kernel);
+			} else if (!cp.matches(kernel)) {
+				throw new IOException("Checkpoint " + checkpointPath + " was written for the chain " + cp.chain
+						+ ", delete it to start over with " + Checkpoint.chain(kernel));
+			}
+			if (!cp.inputCode.equals(kernel.getInputCode())) {
+				kernel = TranscodeKernel.forChain(cp.inputCode, kernel.getMiddleCode(),
+						kernel.getOriginCode(), kernel.getOutputCode());
+			}
+			long start = cp.offset;
+			try (FileChannel out = FileChannel.open(Paths.get(outputPath), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE)) {
+				long outputLength = fresh ? 0 : cp.outputLength < 0 ? out.size() : cp.outputLength;
+				if (out.size() < outputLength) {
+					throw new IOException("Output file " + outputPath + " is shorter than the checkpoint length "
+							+ outputLength + ", delete " + checkpointPath + " to start over");
+				}
+				//drops whatever a crashed run wrote after the last checkpoint
+				out.truncate(outputLength);
+				if (!fresh && size == start && (!flush || cp.pending.length == 0)) return 0;
+				out.position(outputLength);
+				ByteBuffer data = ByteBuffer.allocate(Math.max(windowSize, cp.pending.length * 2));
+				data.put(cp.pending);
+				ByteBuffer converted = ByteBuffer.allocate(kernel.maxOutput(data.capacity()));
+				long pos = cp.offset;
+				while (pos < size) {
+					if (!data.hasRemaining()) {
+						//no ASCII character in the whole buffer, keep everything as pending
+						ByteBuffer bigger = ByteBuffer.allocate(data.capacity() * 2);
+						data.flip();
+						data = bigger.put(data);
+						converted = ByteBuffer.allocate(kernel.maxOutput(data.capacity()));
+					}
+					int limit = data.limit();
+					if (size - pos < data.remaining()) data.limit(data.position() + (int) (size - pos));
+					int n = in.read(data, pos);
+					data.limit(limit);
+					if (n < 0) break;
+					pos += n;
+					int split = SegmentSplitter.findSplit(data.array(), 0, data.position(), cp.inputCode);
+					if (split > 0) {
+						write(kernel, data, split, converted, out);
+					}
+				}
+				if (flush && data.position() > 0) {
+					write(kernel, data, data.position(), converted, out);
+				}
+				out.force(false);
+				cp.outputLength = out.position();
+				cp.offset = pos;
+				cp.pending = new byte[data.position()];
+				System.arraycopy(data.array(), 0, cp.pending, 0, cp.pending.length);
+				cp.fingerprint(in, fileKey, pos);
+				cp.store(checkpointPath);
+				return pos - start;
+			}
+		}
+	}
+
+	/**
+	 * 每隔interval毫秒转换一次新增的数据，直到线程被中断。
+	 * @throws IOException
+	 * @throws InterruptedException	&nbsp;线程被中断时
+	 */
+	public static void follow(String inputPath, String outputPath, TranscodeKernel kernel,
+			int windowSize, long interval) throws IOException, InterruptedException {
+		while (true) {
+			convert(inputPath, outputPath, kernel, windowSize, false);
+			Thread.sleep(interval);
+		}
+	}
+
+	/**
+	 * 转换data中[0, split)的部分并写入out，剩下的部分移到data的开头。
+	 */
+	private static void write(TranscodeKernel kernel, ByteBuffer data, int split, ByteBuffer converted,
+			FileChannel out) throws IOException {
+		int end = data.position();
+		data.position(0).limit(split);
+		converted.clear();
+		kernel.convert(data, converted);
+		converted.flip();
+		while (converted.hasRemaining()) {
+			out.write(converted);
+		}
+		data.limit(end);
+		data.compact();
+	}
+
+	/** 检查点文件的内容。 */
+	private static final class Checkpoint {
+		//编码链，用于检查检查点是否属于当前的编码链
+		String chain;
+		//UTF-16根据BOM确定的实际编码
+		String inputCode;
+		long offset;
+		byte[] pending;
+		//输出文件中已经转换的长度，-1为未记录(旧的检查点文件)
+		long outputLength = -1;
+		//输入文件的指纹：文件标识(文件系统不支持时为null)，以及开头headLength字节的CRC32。headLength为-1时未记录
+		String fileKey;
+		int headLength = -1;
+		long headCrc;
+
+		static String chain(TranscodeKernel kernel) {
+			return kernel.getInputCode() + " -> " + kernel.getMiddleCode() + " -> "
+					+ kernel.getOriginCode() + " -> " + kernel.getOutputCode();
+		}
+
+		boolean matches(TranscodeKernel kernel) {
+			return chain.equals(chain(kernel));
+		}
+
+		/**
+		 * 记录输入文件的指纹。只计算已经读取的部分，所以文件继续增长时指纹不变。
+		 * @param read	&nbsp;已经读取的输入字节数
+		 */
+		void fingerprint(FileChannel in, Object key, long read) throws IOException {
+			fileKey = key == null ? null : key.toString();
+			headLength = (int) Math.min(FINGERPRINT_SIZE, read);
+			headCrc = headCrc(in, headLength);
+		}
+
+		/**
+		 * @return	&nbsp;输入文件与记录指纹时是否为同一个文件。没有记录指纹时(旧的检查点文件)返回true
+		 */
+		boolean sameFile(FileChannel in, Object key) throws IOException {
+			if (headLength < 0) return true;
+			if (fileKey != null && key != null && !fileKey.equals(key.toString())) return false;
+			return in.size() >= headLength && headCrc(in, headLength) == headCrc;
+		}
+
+		static long headCrc(FileChannel in, int length) throws IOException {
+			ByteBuffer head = ByteBuffer.allocate(length);
+			while (head.hasRemaining() && in.read(head, head.position()) != -1);
+			CRC32 crc = new CRC32();
+			crc.update(head.array(), 0, head.position());
+			return crc.getValue();
+		}
+
+		/**
+		 * 从文件开头开始的检查点。文件头部有BOM时跳过BOM，并改用对应的LE或BE。
+		 */
+		static Checkpoint start(FileChannel in, TranscodeKernel kernel) throws IOException {
+			Checkpoint cp = new Checkpoint();
+			cp.chain = chain(kernel);
+			cp.inputCode = kernel.getInputCode();
+			cp.pending = new byte[0];
+			//文件头部BOM信息读取
+			if (cp.inputCode.startsWith("UTF-16") && in.size() >= 2) {
+				ByteBuffer head = ByteBuffer.allocate(2);
+				while (head.hasRemaining() && in.read(head, head.position()) != -1);
+				if (head.get(0) == -1 && head.get(1) == -2) {
+					cp.inputCode = "UTF-16LE";
+					cp.offset = 2;
+				} else if (head.get(0) == -2 && head.get(1) == -1) {
+					cp.inputCode = "UTF-16BE";
+					cp.offset = 2;
+				}
+			}
+			return cp;
+		}
+
+		/** @return	&nbsp;检查点文件不存在时返回null */
+		static Checkpoint load(Path path) throws IOException {
+			if (!Files.exists(path)) return null;
+			Properties p = new Properties();
+			try (InputStream is = Files.newInputStream(path)) {
+				p.load(is);
+			}
+			Checkpoint cp = new Checkpoint();
+			try {
+				cp.chain = p.getProperty("chain");
+				cp.inputCode = p.getProperty("inputCode");
+				cp.offset = Long.parseLong(p.getProperty("offset"));
+				cp.pending = Base64.getDecoder().decode(p.getProperty("pending"));
+				String outputLength = p.getProperty("outputLength");
+				if (outputLength != null) cp.outputLength = Long.parseLong(outputLength);
+				cp.fileKey = p.getProperty("fileKey");
+				String headLength = p.getProperty("headLength");
+				if (headLength != null) {
+					cp.headLength = Integer.parseInt(headLength);
+					cp.headCrc = Long.parseLong(p.getProperty("headCrc"));
+				}
+			} catch (RuntimeException e) {
+				//missing key or malformed value
+				throw new IOException("Invalid checkpoint file " + path, e);
+			}
+			if (cp.chain == null || cp.inputCode == null) {
+				throw new IOException("Invalid checkpoint file " + path);
+			}
+			return cp;
+		}
+
+		/** 先写入临时文件，再原子地替换检查点文件。 */
+		void store(Path path) throws IOException {
+			Properties p = new Properties();
+			p.setProperty("chain", chain);
+			p.setProperty("inputCode", inputCode);
+			p.setProperty("offset", Long.toString(offset));
+			p.setProperty("pending", Base64.getEncoder().encodeToString(pending));
+			p.setProperty("outputLength", Long.toString(outputLength));
+			if (fileKey != null) p.setProperty("fileKey", fileKey);
+			p.setProperty("headLength", Integer.toString(headLength));
+			p.setProperty("headCrc", Long.toString(headCrc));
+			Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+			try (OutputStream os = Files.newOutputStream(tmp)) {
+				p.store(os, "twoTimeConvert incremental checkpoint");
+			}
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+}
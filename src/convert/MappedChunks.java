@@ -0,0 +1,97 @@
+package convert;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**<p>
+ * 把内存映射的输入文件按窗口大小依次切成可以独立转换的块，供MappedConvert和ParallelConvert使用。</p><p>
+ * 文件按区域映射到内存(每个区域至少64MB，一个区域内可以包含多个窗口)，
+ * 在每个窗口的末尾向前查找分块位置，返回该块的只读视图，不复制任何数据。
+ * UTF-16输入会先读取BOM，并改用对应的LE或BE转码核心。</p>
+ * @author 何晶   He, Jing
+ */
+final class MappedChunks {
+	//每次映射的区域至少为64MB
+	private static final int MAP_SIZE = 64 << 20;
+
+	private final FileChannel in;
+	private final long size;
+	private final int windowSize;
+	private final String inputCode;
+	private final TranscodeKernel kernel;
+	private long pos;
+	private MappedByteBuffer region;
+	private long regionPos;
+	private int regionLen;
+	//找不到分块位置的次数
+	private int splitFailures;
+
+	MappedChunks(FileChannel in, TranscodeKernel kernel, int windowSize) throws IOException {
+		if (windowSize < 2) {
+			throw new IllegalArgumentException("Window size must be at least 2 bytes, got " + windowSize);
+		}
+		this.in = in;
+		this.size = in.size();
+		this.windowSize = windowSize;
+		//文件头部BOM信息读取
+		String code = kernel.getInputCode();
+		if (code.startsWith("UTF-16") && size >= 2) {
+			MappedByteBuffer head = in.map(FileChannel.MapMode.READ_ONLY, 0, 2);
+			String bomCode = null;
+			if (head.get(0) == -1 && head.get(1) == -2) {
+				bomCode = "UTF-16LE";
+			} else if (head.get(0) == -2 && head.get(1) == -1) {
+				bomCode = "UTF-16BE";
+			}
+			if (bomCode != null) {
+				pos = 2;
+				code = bomCode;
+				kernel = TranscodeKernel.forChain(code, kernel.getMiddleCode(),
+						kernel.getOriginCode(), kernel.getOutputCode());
+			}
+		}
+		this.inputCode = code;
+		this.kernel = kernel;
+	}
+
+	/** 与文件的BOM对应的转码核心。 */
+	TranscodeKernel kernel() {
+		return kernel;
+	}
+
+	/** 找不到分块位置、只能在窗口末尾直接切断的次数。 */
+	int splitFailures() {
+		return splitFailures;
+	}
+
+	/**
+	 * @return	&nbsp;下一块的只读视图，position和limit为该块的范围，最长为一个窗口；文件结束时返回null
+	 * @throws IOException
+	 */
+	ByteBuffer next() throws IOException {
+		if (pos >= size) return null;
+		long remaining = size - pos;
+		int len = (int) Math.min(windowSize, remaining);
+		if (region == null || pos + len > regionPos + regionLen) {
+			regionPos = pos;
+			regionLen = (int) Math.min(Math.max(windowSize, MAP_SIZE), remaining);
+			region = in.map(FileChannel.MapMode.READ_ONLY, regionPos, regionLen);
+		}
+		int from = (int) (pos - regionPos);
+		int split = from + len;
+		if (len < remaining) {
+			split = SegmentSplitter.findSplit(region, from, from + len, inputCode);
+			if (split < 0) {
+				SegmentSplitter.reportFailure(windowSize, inputCode);
+				splitFailures++;
+				split = from + len;
+			}
+		}
+		pos += split - from;
+		ByteBuffer chunk = region.duplicate();
+		chunk.limit(split).position(from);
+		return chunk;
+	}
+}
@@ -0,0 +1,61 @@
+package convert;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**<p>
+ * 使用NIO的FileChannel和内存映射(memory-mapped)文件进行分块转换。</p><p>
+ * segmentConvert()每读一个4KB的分块就要调用一次read和一次write，并且要把数据复制到堆中的byte[]里。
+ * 本类用FileChannel.map()把输入文件按区域映射到内存(每个区域至少64MB)，
+ * 直接在映射的区域内按窗口大小(默认8MB)查找分块位置(见MappedChunks)并交给TranscodeKernel转换，
+ * 结果写入一个可重复使用的direct ByteBuffer(每个线程一个，转换多个文件时也重复使用)，再一次性写入输出文件。
+ * 窗口末尾不完整的部分不需要复制，下一个窗口直接从分块位置开始即可。</p><p>
+ * 窗口大小可以在运行时指定。窗口越大，系统调用越少，但如果在一个窗口内找不到ASCII字符，
+ * 仍会与segmentConvert()一样导致分块失败。</p>
+ * @author 何晶   He, Jing
+ */
+public final class MappedConvert {
+	//默认的窗口大小为8MB
+	public static final int DEFAULT_WINDOW_SIZE = 8 << 20;
+	//每个线程的输出缓冲区，BatchConvert依次转换很多文件时不必每个文件重新分配direct内存
+	private static final ThreadLocal<ByteBuffer> CONVERTED = new ThreadLocal<ByteBuffer>();
+
+	private MappedConvert() {
+	}
+
+	/**
+	 * @param inputPath		&nbsp;输入文件路径 	&nbsp; Input File Path
+	 * @param outputPath	&nbsp;输出文件路径	&nbsp; Output File Path
+	 * @param kernel		&nbsp;转码核心，决定了编码链。UTF-16输入会根据BOM改为LE或BE
+	 * @param windowSize	&nbsp;每次映射的窗口大小(字节)
+	 * @return	&nbsp;找不到分块位置的次数，不为0时输出中可能有被切断的字符
+	 * @throws IOException
+	 */
+	public static int convert(String inputPath, String outputPath, TranscodeKernel kernel,
+			int windowSize) throws IOException {
+		try (FileChannel in = FileChannel.open(Paths.get(inputPath), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(Paths.get(outputPath), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedChunks chunks = new MappedChunks(in, kernel, windowSize);
+			kernel = chunks.kernel();
+			ByteBuffer converted = CONVERTED.get();
+			if (converted == null || converted.capacity() < kernel.maxOutput(windowSize)) {
+				converted = ByteBuffer.allocateDirect(kernel.maxOutput(windowSize));
+				CONVERTED.set(converted);
+			}
+			ByteBuffer chunk;
+			while ((chunk = chunks.next()) != null) {
+				converted.clear();
+				kernel.convert(chunk, converted);
+				converted.flip();
+				while (converted.hasRemaining()) {
+					out.write(converted);
+				}
+			}
+			return chunks.splitFailures();
+		}
+	}
+}
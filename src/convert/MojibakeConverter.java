@@ -0,0 +1,306 @@
+package convert;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**<p>
+ * 可以嵌入其他程序使用的乱码转换器。每个实例对应一条编码链(inputCode -&gt; middleCode -&gt; originCode -&gt; outputCode)，
+ * 创建后不可改变，可以被多个线程同时使用，不同的编码链也可以同时使用。</p><p>
+ * 编码在创建时查找一次，保存为Charset实例，之后转换时不再按名称查找编码：</p><p>
+ * convert(byte[])和repair(String)用于内存中的短数据，例如一条记录，使用共享的TranscodeKernel；</p><p>
+ * convert(InputStream, OutputStream)用于完整的数据流，每个线程使用自己的StreamingTranscoder和缓冲区，
+ * 在该线程中重复使用；</p><p>
+ * wrap(InputStream)、wrap(OutputStream)和newReader(InputStream)返回在读写时实时转换的流。
+ * 每个流有自己的StreamingTranscoder，与JDK的流一样不是线程安全的。</p>
+ * @author 何晶   He, Jing
+ */
+public final class MojibakeConverter {
+	//流的缓冲区大小
+	private static final int STREAM_BUFFER_SIZE = 8 << 10;
+
+	private final Charset input;
+	private final Charset middle;
+	private final Charset origin;
+	private final Charset output;
+	private final TranscodeKernel kernel;
+	//每个线程的转码器和读取缓冲区，供convert(InputStream, OutputStream)使用
+	private final ThreadLocal<PerThread> perThread = new ThreadLocal<PerThread>() {
+		@Override
+		protected PerThread initialValue() {
+			return new PerThread(newTranscoder(StreamingTranscoder.DEFAULT_BUFFER_SIZE),
+					ByteBuffer.allocate(StreamingTranscoder.DEFAULT_BUFFER_SIZE));
+		}
+	};
+
+	private MojibakeConverter(TranscodeKernel kernel) {
+		this.kernel = kernel;
+		this.input = Charset.forName(kernel.getInputCode());
+		this.middle = Charset.forName(kernel.getMiddleCode());
+		this.origin = Charset.forName(kernel.getOriginCode());
+		this.output = Charset.forName(kernel.getOutputCode());
+	}
+
+	/**
+	 * @throws java.nio.charset.UnsupportedCharsetException 编码不受支持时
+	 */
+	public static MojibakeConverter of(String inputCode, String middleCode, String originCode, String outputCode) {
+		return new MojibakeConverter(TranscodeKernel.forChain(inputCode, middleCode, originCode, outputCode));
+	}
+
+	/** 默认的编码链：UTF-8 -&gt; Windows-1252 -&gt; GBK -&gt; UTF-8。 */
+	public static MojibakeConverter defaults() {
+		return of("UTF-8", "Windows-1252", "GBK", "UTF-8");
+	}
+
+	public Charset getInput() {
+		return input;
+	}
+
+	public Charset getMiddle() {
+		return middle;
+	}
+
+	public Charset getOrigin() {
+		return origin;
+	}
+
+	public Charset getOutput() {
+		return output;
+	}
+
+	/**
+	 * 转换一段完整的数据，结果与twoTimeConvert.realConvert2()相同。
+	 * @param in	&nbsp;以inputCode编码的乱码
+	 * @return	&nbsp;以outputCode编码的结果
+	 */
+	public byte[] convert(byte[] in) {
+		return kernel.convert(in, 0, in.length);
+	}
+
+	public byte[] convert(byte[] in, int off, int len) {
+		return kernel.convert(in, off, len);
+	}
+
+	/**
+	 * 修复已经解码为字符串的乱码，即只执行middleCode和originCode两步，不涉及inputCode和outputCode。
+	 * @param mojibake	&nbsp;乱码字符串，例如Æ·Ãû
+	 * @return	&nbsp;修复后的字符串
+	 */
+	public String repair(String mojibake) {
+		return new String(mojibake.getBytes(middle), origin);
+	}
+
+	/**
+	 * 读取in中的全部数据，转换后写入out。两个流都不会被关闭。
+	 * @throws IOException
+	 */
+	public void convert(InputStream in, OutputStream out) throws IOException {
+		PerThread p = perThread.get();
+		try {
+			p.transcoder.convert(Channels.newChannel(in), Channels.newChannel(out), p.buffer);
+		} finally {
+			//an exception may leave data behind, the next call must start clean
+			p.transcoder.reset();
+		}
+	}
+
+	/**
+	 * 返回一个流式转码器，供需要自己管理缓冲区的调用者使用。该转码器只能在一个线程中使用。
+	 * @param bufferSize	&nbsp;每一步的缓冲区大小
+	 */
+	public StreamingTranscoder newTranscoder(int bufferSize) {
+		return new StreamingTranscoder(input, middle, origin, output, bufferSize);
+	}
+
+	/**
+	 * 读取时实时转换：从返回的流中读到的是in中的数据转换后以outputCode编码的结果。
+	 * 关闭返回的流时会关闭in。
+	 */
+	public InputStream wrap(InputStream in) {
+		return new RepairInputStream(in, newTranscoder(STREAM_BUFFER_SIZE));
+	}
+
+	/**
+	 * 写入时实时转换：写入返回的流的乱码数据转换后写入out。
+	 * 末尾不完整的字符在close()时才会写出，所以必须关闭返回的流；关闭时会关闭out。
+	 */
+	public OutputStream wrap(OutputStream out) {
+		return new RepairOutputStream(out, newTranscoder(STREAM_BUFFER_SIZE));
+	}
+
+	/**
+	 * 读取时实时转换，返回修复后的字符。关闭返回的Reader时会关闭in。
+	 */
+	public Reader newReader(InputStream in) {
+		return new InputStreamReader(wrap(in), output);
+	}
+
+	@Override
+	public String toString() {
+		return input.name() + " -> " + middle.name() + " -> " + origin.name() + " -> " + output.name();
+	}
+
+	private static final class PerThread {
+		final StreamingTranscoder transcoder;
+		final ByteBuffer buffer;
+
+		PerThread(StreamingTranscoder transcoder, ByteBuffer buffer) {
+			this.transcoder = transcoder;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * 转换结果暂存在一个可扩展的缓冲区中，read()从中取出。
+	 */
+	private static final class RepairInputStream extends InputStream implements WritableByteChannel {
+		private final InputStream in;
+		private final StreamingTranscoder transcoder;
+		private final byte[] raw = new byte[STREAM_BUFFER_SIZE];
+		private final ByteBuffer rawBuffer = ByteBuffer.wrap(raw);
+		//转换后尚未读取的数据，平时处于读取状态
+		private ByteBuffer converted = ByteBuffer.allocate(STREAM_BUFFER_SIZE * 2);
+		private boolean eof;
+
+		RepairInputStream(InputStream in, StreamingTranscoder transcoder) {
+			this.in = in;
+			this.transcoder = transcoder;
+			converted.flip();
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) return -1;
+			return converted.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (!fill()) return -1;
+			int n = Math.min(len, converted.remaining());
+			converted.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return converted.remaining();
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		/**
+		 * 转换后的数据用完时读取并转换更多数据。
+		 * @return	&nbsp;是否还有数据
+		 */
+		private boolean fill() throws IOException {
+			while (!converted.hasRemaining() && !eof) {
+				converted.clear();
+				int n = in.read(raw, rawBuffer.position(), rawBuffer.remaining());
+				if (n < 0) {
+					eof = true;
+					rawBuffer.flip();
+					transcoder.convert(rawBuffer, true, this);
+				} else {
+					rawBuffer.position(rawBuffer.position() + n);
+					rawBuffer.flip();
+					transcoder.convert(rawBuffer, false, this);
+					rawBuffer.compact();
+				}
+				converted.flip();
+			}
+			return converted.hasRemaining();
+		}
+
+		//called by the transcoder while converted is in write mode
+		@Override
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			if (converted.remaining() < n) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(converted.capacity() * 2, converted.position() + n));
+				converted.flip();
+				bigger.put(converted);
+				converted = bigger;
+			}
+			converted.put(src);
+			return n;
+		}
+	}
+
+	/**
+	 * 写入的数据先放入缓冲区，缓冲区满、flush()或close()时转换。
+	 */
+	private static final class RepairOutputStream extends FilterOutputStream {
+		private final StreamingTranscoder transcoder;
+		private final WritableByteChannel channel;
+		private final ByteBuffer pending = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+		private boolean closed;
+
+		RepairOutputStream(OutputStream out, StreamingTranscoder transcoder) {
+			super(out);
+			this.transcoder = transcoder;
+			this.channel = Channels.newChannel(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!pending.hasRemaining()) drain(false);
+			pending.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (!pending.hasRemaining()) drain(false);
+				int n = Math.min(len, pending.remaining());
+				pending.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * 转换并写出已完整的字符，末尾不完整的字符要等后面的数据。
+		 */
+		@Override
+		public void flush() throws IOException {
+			drain(false);
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			try {
+				drain(true);
+				out.flush();
+			} finally {
+				out.close();
+			}
+		}
+
+		private void drain(boolean end) throws IOException {
+			pending.flip();
+			transcoder.convert(pending, end, channel);
+			pending.compact();
+		}
+	}
+}
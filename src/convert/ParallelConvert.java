@@ -0,0 +1,128 @@
+package convert;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**<p>
+ * 使用多个线程同时转换一个大文件。</p><p>
+ * 以ASCII字符分块后，每一块都可以独立转换(见twoTimeConvert.segmentConvert()的说明)，
+ * 所以主线程依次在内存映射的文件中查找分块位置(见MappedChunks)，把每一块交给固定大小的线程池转换，
+ * 再按原来的顺序把结果写入输出文件。</p><p>
+ * 同时在处理中(已提交但尚未写入)的块数不超过maxInFlight，
+ * 所以占用的内存约为maxInFlight * TranscodeKernel.maxOutput(windowSize)，与文件大小无关。</p>
+ * @author 何晶   He, Jing
+ */
+public final class ParallelConvert {
+	//并行转换的默认窗口大小为4MB，比MappedConvert小一些，以减少同时占用的输出缓冲区
+	public static final int DEFAULT_WINDOW_SIZE = 4 << 20;
+
+	private ParallelConvert() {
+	}
+
+	/** 默认的线程数，即CPU核数。 */
+	public static int defaultThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/** 默认的同时处理的块数：每个线程一块，再加两块用于写入和排队。 */
+	public static int defaultInFlight(int threads) {
+		return threads + 2;
+	}
+
+	/**
+	 * @param inputPath		&nbsp;输入文件路径 	&nbsp; Input File Path
+	 * @param outputPath	&nbsp;输出文件路径	&nbsp; Output File Path
+	 * @param kernel		&nbsp;转码核心，决定了编码链。UTF-16输入会根据BOM改为LE或BE
+	 * @param windowSize	&nbsp;每一块的最大长度(字节)
+	 * @param threads		&nbsp;转换线程数
+	 * @param maxInFlight	&nbsp;同时处理的最大块数
+	 * @throws IOException
+	 */
+	public static void convert(String inputPath, String outputPath, TranscodeKernel kernel,
+			final int windowSize, int threads, int maxInFlight) throws IOException {
+		if (threads < 1 || maxInFlight < 1) {
+			throw new IllegalArgumentException("threads and maxInFlight must be positive, got "
+					+ threads + " and " + maxInFlight);
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new WorkerFactory());
+		try (FileChannel in = FileChannel.open(Paths.get(inputPath), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(Paths.get(outputPath), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedChunks chunks = new MappedChunks(in, kernel, windowSize);
+			final TranscodeKernel k = chunks.kernel();
+			//output buffers are recycled, at most maxInFlight of them are ever allocated
+			final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+			Queue<Future<ByteBuffer>> pending = new ArrayDeque<Future<ByteBuffer>>();
+			ByteBuffer chunk;
+			while ((chunk = chunks.next()) != null) {
+				if (pending.size() >= maxInFlight) {
+					write(pending.poll(), out, free);
+				}
+				final ByteBuffer c = chunk;
+				pending.add(pool.submit(() -> {
+					ByteBuffer converted = free.poll();
+					if (converted == null) {
+						converted = ByteBuffer.allocateDirect(k.maxOutput(windowSize));
+					}
+					converted.clear();
+					k.convert(c, converted);
+					converted.flip();
+					return converted;
+				}));
+			}
+			while (!pending.isEmpty()) {
+				write(pending.poll(), out, free);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * 等待最早提交的一块转换完成，写入输出文件，并回收其缓冲区。
+	 */
+	private static void write(Future<ByteBuffer> head, FileChannel out, Queue<ByteBuffer> free)
+			throws IOException {
+		ByteBuffer converted;
+		try {
+			converted = head.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a converted segment");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+		while (converted.hasRemaining()) {
+			out.write(converted);
+		}
+		free.add(converted);
+	}
+
+	//daemon threads, so an exception in the writer never leaves the JVM hanging
+	private static final class WorkerFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "convert-worker-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package convert;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**<p>
+ * 按记录(行)和字段转换TSV/CSV文件，只修复指定的列。</p><p>
+ * 导出的表格中同样的乱码商品名、规格往往在成千上万行中重复出现(例如每个门店一行)，
+ * 所以修复后的字段按原始字节保存在有上限的LRU缓存(FieldCache)中，重复的字段直接使用缓存的结果，不再转换。
+ * 纯ASCII的字段(数字、日期、编号等)原样复制，不经过转换也不进入缓存。</p><p>
+ * 没有选中的列不修复：inputCode与outputCode相同时原样复制，否则只从inputCode转为outputCode。
+ * 分隔符、引号和换行符(\n或\r\n)原样复制。CSV模式下双引号中的分隔符和换行符属于字段内容，
+ * 引号本身是ASCII字符，随字段一起转换后不变。</p><p>
+ * 分隔符和换行符按字节查找，所以inputCode必须是UTF-8或单字节编码，outputCode必须与ASCII兼容；
+ * GBK等双字节编码的尾字节可能是ASCII字符，UTF-16的ASCII字符不是单个字节，都不能这样拆分。
+ * 乱码中originCode(例如GBK)的尾字节即使是ASCII字符，也不会是Tab、逗号、双引号或换行符，所以不会拆错字段。</p><p>
+ * 输入按块读取，一条记录超过缓冲区大小时扩大缓冲区，所以占用的内存与文件大小无关，只与最长的记录有关。</p>
+ * @author 何晶   He, Jing
+ */
+public final class RecordConvert {
+	//默认缓存的字段数
+	public static final int DEFAULT_CACHE_SIZE = 16384;
+	//超过这个字节数的字段很少重复，不进入缓存
+	public static final int MAX_CACHED_FIELD = 1024;
+	//读写缓冲区的初始大小
+	private static final int BUFFER_SIZE = 64 << 10;
+
+	private RecordConvert() {
+	}
+
+	/**
+	 * @param inputPath		&nbsp;输入文件路径
+	 * @param outputPath	&nbsp;输出文件路径，已存在的文件会被覆盖
+	 * @param kernel		&nbsp;修复选中的列使用的编码链
+	 * @param delimiter		&nbsp;字段分隔符，TSV为'\t'，CSV为','
+	 * @param quoted		&nbsp;是否按CSV的规则处理双引号
+	 * @param columns		&nbsp;需要修复的列，从0开始；为null时修复所有列
+	 * @param cache			&nbsp;修复结果的缓存，只能用于同一个编码链
+	 * @throws IOException
+	 * @throws IllegalArgumentException 编码无法按字节拆分字段，或分隔符不是ASCII字符时
+	 */
+	public static void convert(String inputPath, String outputPath, TranscodeKernel kernel, byte delimiter,
+			boolean quoted, BitSet columns, FieldCache cache) throws IOException {
+		Charset input = Charset.forName(kernel.getInputCode());
+		Charset output = Charset.forName(kernel.getOutputCode());
+		if (!isSplittable(input) || !AsciiScanner.isAsciiCompatible(output)) {
+			throw new IllegalArgumentException("Record mode requires UTF-8 or a single-byte input encoding and an "
+					+ "ASCII compatible output encoding, got " + input.name() + " and " + output.name() + ".");
+		}
+		if (delimiter < 0 || delimiter == '\n' || delimiter == '\r' || delimiter == '"') {
+			throw new IllegalArgumentException("Invalid delimiter: " + delimiter);
+		}
+		//unselected columns only change from inputCode to outputCode
+		TranscodeKernel plain = input.equals(output) ? null
+				: TranscodeKernel.forChain(input.name(), input.name(), input.name(), output.name());
+		try (FileChannel in = FileChannel.open(Paths.get(inputPath), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(Paths.get(outputPath), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			new Records(in, out, kernel, plain, delimiter, quoted, columns, cache).run();
+		}
+	}
+
+	/**
+	 * inputCode中的换行符、分隔符是否总是单独的一个ASCII字节。
+	 */
+	static boolean isSplittable(Charset cs) {
+		if ("UTF-8".equals(cs.name())) return true;
+		return AsciiScanner.isAsciiCompatible(cs) && cs.newEncoder().maxBytesPerChar() == 1.0f;
+	}
+
+	/**
+	 * 一个文件的转换过程。in处于写入状态，[0, in.position())为已读取、未处理的数据。
+	 */
+	private static final class Records {
+		private final FileChannel inChannel;
+		private final FileChannel outChannel;
+		private final TranscodeKernel kernel;
+		private final TranscodeKernel plain;
+		private final byte delimiter;
+		private final boolean quoted;
+		private final BitSet columns;
+		private final FieldCache cache;
+		private final boolean copyAscii;
+		private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+		//in的另一个视图，用于把一个字段交给kernel
+		private ByteBuffer field = in.duplicate();
+		private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+		private long written;
+		private long lost;
+
+		Records(FileChannel in, FileChannel out, TranscodeKernel kernel, TranscodeKernel plain, byte delimiter,
+				boolean quoted, BitSet columns, FieldCache cache) {
+			this.inChannel = in;
+			this.outChannel = out;
+			this.kernel = kernel;
+			this.plain = plain;
+			this.delimiter = delimiter;
+			this.quoted = quoted;
+			this.columns = columns;
+			this.cache = cache;
+			copyAscii = kernel.isAsciiIdentity();
+		}
+
+		void run() throws IOException {
+			boolean eof = false;
+			while (!eof) {
+				if (!in.hasRemaining()) grow();
+				eof = inChannel.read(in) == -1;
+				long start = System.nanoTime();
+				long before = written + out.position();
+				lost = 0;
+				byte[] a = in.array();
+				int end = in.position();
+				int from = 0;
+				int next;
+				while ((next = recordEnd(a, from, end)) >= 0) {
+					record(a, from, next);
+					from = next;
+				}
+				if (eof && from < end) {
+					//the last record has no line break
+					record(a, from, end);
+					from = end;
+				}
+				in.limit(end).position(from);
+				in.compact();
+				ConvertMetrics metrics = ConvertMetrics.global();
+				metrics.recordReplacements(lost);
+				metrics.recordSegment(from, written + out.position() - before, System.nanoTime() - start);
+			}
+			flush();
+		}
+
+		/**
+		 * 查找一条记录的末尾，CSV模式下跳过双引号中的换行符。
+		 * @return	&nbsp;换行符之后的位置，没有完整的记录时返回-1
+		 */
+		private int recordEnd(byte[] a, int from, int to) {
+			boolean inQuotes = false;
+			for (int i = from; i < to; i++) {
+				byte b = a[i];
+				if (b == '\n' && !inQuotes) return i + 1;
+				if (b == '"' && quoted) inQuotes = !inQuotes;
+			}
+			return -1;
+		}
+
+		/**
+		 * 转换[from, to)中的一条记录，末尾的\n或\r\n原样复制。
+		 */
+		private void record(byte[] a, int from, int to) throws IOException {
+			int body = to;
+			if (body > from && a[body - 1] == '\n') body--;
+			if (body > from && a[body - 1] == '\r') body--;
+			int column = 0;
+			int i = from;
+			while (true) {
+				int end = fieldEnd(a, i, body);
+				field(column, a, i, end - i);
+				if (end == body) break;
+				ensure(1);
+				out.put(delimiter);
+				column++;
+				i = end + 1;
+			}
+			ensure(to - body);
+			out.put(a, body, to - body);
+		}
+
+		/**
+		 * @return	&nbsp;字段之后的分隔符的位置，最后一个字段返回to
+		 */
+		private int fieldEnd(byte[] a, int from, int to) {
+			boolean inQuotes = false;
+			for (int i = from; i < to; i++) {
+				byte b = a[i];
+				if (b == delimiter && !inQuotes) return i;
+				if (b == '"' && quoted) inQuotes = !inQuotes;
+			}
+			return to;
+		}
+
+		private void field(int column, byte[] a, int off, int len) throws IOException {
+			if (len == 0) return;
+			if (columns != null && !columns.get(column)) {
+				if (plain == null) {
+					copy(a, off, len);
+				} else {
+					convert(plain, off, len);
+				}
+			} else if (copyAscii && AsciiScanner.asciiRun(in, off, off + len) == len) {
+				//numbers, dates, codes
+				copy(a, off, len);
+			} else {
+				byte[] repaired = cache.get(a, off, len);
+				if (repaired != null) {
+					copy(repaired, 0, repaired.length);
+				} else {
+					int o = convert(kernel, off, len);
+					if (len <= MAX_CACHED_FIELD) {
+						cache.put(a, off, len, Arrays.copyOfRange(out.array(), o, out.position()));
+					}
+				}
+			}
+		}
+
+		/**
+		 * 用k转换in中的一个字段，直接写入out。
+		 * @return	&nbsp;转换结果在out中的开始位置
+		 */
+		private int convert(TranscodeKernel k, int off, int len) throws IOException {
+			ensure(k.maxOutput(len));
+			field.limit(off + len).position(off);
+			int o = out.position();
+			lost += k.transcode(field, out);
+			return o;
+		}
+
+		private void copy(byte[] a, int off, int len) throws IOException {
+			ensure(len);
+			out.put(a, off, len);
+		}
+
+		/**
+		 * 保证out至少还有n个字节的空间，必要时先写入文件，一个字段比缓冲区还大时扩大缓冲区。
+		 */
+		private void ensure(int n) throws IOException {
+			if (out.remaining() >= n) return;
+			flush();
+			if (out.capacity() < n) out = ByteBuffer.allocate(n);
+		}
+
+		private void flush() throws IOException {
+			out.flip();
+			written += out.remaining();
+			while (out.hasRemaining()) {
+				outChannel.write(out);
+			}
+			out.clear();
+		}
+
+		/**
+		 * 一条记录比缓冲区还长，扩大读取缓冲区。
+		 */
+		private void grow() {
+			ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+			in.flip();
+			bigger.put(in);
+			in = bigger;
+			field = in.duplicate();
+		}
+	}
+
+	/**<p>
+	 * 字段修复结果的LRU缓存，按原始字节查找，最多保存maxEntries个字段，超过时丢弃最久没有使用的字段。</p><p>
+	 * 查找时使用可重复使用的键，不复制字节，只有缓存未命中、放入新字段时才分配。
+	 * 缓存的结果只对同一个编码链有效。本类不是线程安全的。</p>
+	 */
+	public static final class FieldCache {
+		private final int maxEntries;
+		private final Map<Key, byte[]> map;
+		private final Key probe = new Key(null, 0, 0);
+		private long hits;
+		private long misses;
+
+		public FieldCache(int maxEntries) {
+			if (maxEntries < 1) {
+				throw new IllegalArgumentException("maxEntries must be positive, got " + maxEntries);
+			}
+			this.maxEntries = maxEntries;
+			map = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+					return size() > FieldCache.this.maxEntries;
+				}
+			};
+		}
+
+		/**
+		 * @return	&nbsp;a[off, off + len)的修复结果，不在缓存中时返回null
+		 */
+		public byte[] get(byte[] a, int off, int len) {
+			probe.set(a, off, len);
+			byte[] value = map.get(probe);
+			//never keep a reference to the caller's array
+			probe.set(null, 0, 0);
+			if (value == null) {
+				misses++;
+			} else {
+				hits++;
+			}
+			return value;
+		}
+
+		/**
+		 * 保存a[off, off + len)的修复结果，键的字节会被复制。
+		 */
+		public void put(byte[] a, int off, int len, byte[] value) {
+			map.put(new Key(Arrays.copyOfRange(a, off, off + len), 0, len), value);
+		}
+
+		public int size() {
+			return map.size();
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+	}
+
+	/** 字节数组的一段，按内容比较。 */
+	private static final class Key {
+		private byte[] a;
+		private int off;
+		private int len;
+		private int hash;
+
+		Key(byte[] a, int off, int len) {
+			set(a, off, len);
+		}
+
+		void set(byte[] a, int off, int len) {
+			this.a = a;
+			this.off = off;
+			this.len = len;
+			int h = 1;
+			for (int i = off; i < off + len; i++) {
+				h = 31 * h + a[i];
+			}
+			hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key k = (Key) obj;
+			if (k.len != len || k.hash != hash) return false;
+			for (int i = 0; i < len; i++) {
+				if (a[off + i] != k.a[k.off + i]) return false;
+			}
+			return true;
+		}
+	}
+}
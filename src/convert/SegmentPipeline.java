@@ -0,0 +1,81 @@
+package convert;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**<p>
+ * 按ASCII字符分块的转换流程(UTF8ToANSI.segmentConvert())，稳定运行时不分配任何对象。</p><p>
+ * 原来每读一块都要分配validBuffer(Arrays.copyOf)、left0/left1(Arrays.copyOfRange)、combined(concat)，
+ * 以及realConvert2()中的四个中间对象，每4KB约八次分配，转换GB级的文件时GC非常频繁。
+ * 现在只使用两个在构造时分配的缓冲区：</p><p>
+ * ring：大小为两块。[0, carry)为上一块分块位置之后剩下的部分，新的一块直接读到它后面，
+ * 按[0, split)的视图(position和limit)交给TranscodeKernel转换，剩下的部分compact()到开头，不需要复制到新的数组；</p><p>
+ * converted：转换结果，每块重复使用，写入输出后清空。</p><p>
+ * 分块规则与原来相同：只在新读入的一块中查找最后一个ASCII字符，找不到时打印错误信息，
+ * 只取新的一块的第一个字节(见SegmentSplitter)。所以剩下的部分总是小于一块，ring不会溢出。</p><p>
+ * 占用的内存与文件大小无关，约为三到四块的大小，适合在很小的堆中运行。
+ * 本类的实例不是线程安全的，但可以依次转换多个文件。</p>
+ * @author 何晶   He, Jing
+ */
+public final class SegmentPipeline {
+	private final TranscodeKernel kernel;
+	private final int segmentSize;
+	private final ByteBuffer ring;
+	private final ByteBuffer converted;
+
+	/**
+	 * @param kernel		&nbsp;转码核心，决定了编码链
+	 * @param segmentSize	&nbsp;分块大小(字节)
+	 */
+	public SegmentPipeline(TranscodeKernel kernel, int segmentSize) {
+		if (segmentSize < 16) {
+			throw new IllegalArgumentException("segmentSize must be at least 16, got " + segmentSize);
+		}
+		this.kernel = kernel;
+		this.segmentSize = segmentSize;
+		ring = ByteBuffer.allocate(segmentSize * 2);
+		converted = ByteBuffer.allocate(kernel.maxOutput(segmentSize * 2));
+	}
+
+	/**
+	 * 从in读取全部数据，逐块转换后写入out。两个通道都不会被关闭。
+	 * @throws IOException
+	 */
+	public void convert(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		String inputCode = kernel.getInputCode();
+		ring.clear();
+		while (true) {
+			int carry = ring.position();
+			ring.limit(carry + segmentSize);
+			while (ring.hasRemaining() && in.read(ring) != -1);
+			int end = ring.position();
+			if (ring.hasRemaining()) {
+				//for the end part of the document, also when it is empty
+				write(0, end, out);
+				ring.clear();
+				return;
+			}
+			int split = SegmentSplitter.findSplit(ring, carry, end, inputCode);
+			if (split < 0) {
+				SegmentSplitter.reportFailure(segmentSize, inputCode);
+				split = carry + 1;
+			}
+			write(0, split, out);
+			ring.limit(end).position(split);
+			ring.compact();
+		}
+	}
+
+	private void write(int from, int to, WritableByteChannel out) throws IOException {
+		if (to == from) return;
+		ring.limit(to).position(from);
+		converted.clear();
+		kernel.convert(ring, converted);
+		converted.flip();
+		while (converted.hasRemaining()) {
+			out.write(converted);
+		}
+	}
+}
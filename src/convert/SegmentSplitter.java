@@ -0,0 +1,93 @@
+package convert;
+
+import java.nio.ByteBuffer;
+
+/**<p>
+ * 查找文件分块(Segmentation)的位置。原理请见twoTimeConvert.segmentConvert()的说明：
+ * 在每块的末尾向前查找标准ASCII字符，即单个字节十进制值为0-127范围内的字符，以ASCII字符后的位置来分块。</p><p>
+ * UTF-16的ASCII字符为两个字节，LE为(0x00-0x7F, 0x00)，BE为(0x00, 0x00-0x7F)，
+ * 且只在从块开头起偶数字节的位置查找，避免把两个字符各自的一半误认为一个ASCII字符。
+ * 没有BOM的UTF-16按Java的默认规则视为BE。</p><p>
+ * 查找使用AsciiScanner，一次检查8个字节。每次查找的距离和失败次数记录在ConvertMetrics.global()中。</p>
+ * @author 何晶   He, Jing
+ */
+public final class SegmentSplitter {
+
+	private SegmentSplitter() {
+	}
+
+	/**
+	 * 在buf的[from, to)范围内从后向前查找分块位置。不使用也不改变buf的position和limit。
+	 * @param buf		&nbsp;数据
+	 * @param from		&nbsp;块的开始位置，UTF-16按此位置对齐
+	 * @param to		&nbsp;块的结束位置(不包含)
+	 * @param inputCode	&nbsp;数据的编码
+	 * @return	&nbsp;分块位置，即最后一个ASCII字符之后的位置，在(from, to]之间；找不到时返回-1
+	 */
+	public static int findSplit(ByteBuffer buf, int from, int to, String inputCode) {
+		int split = scan(buf, from, to, inputCode);
+		ConvertMetrics.global().recordSplitScan(to - (split < 0 ? from : split));
+		return split;
+	}
+
+	/**
+	 * 与findSplit()相同，但不记录统计数据，用于不属于转换本身的查找，例如ChainDetector的采样。
+	 */
+	static int scan(ByteBuffer buf, int from, int to, String inputCode) {
+		int i;
+		if ("UTF-16LE".equals(inputCode)) {
+			i = AsciiScanner.lastAscii16(buf, from, to, true);
+			return i < 0 ? -1 : i + 2;
+		} else if ("UTF-16BE".equals(inputCode) || "UTF-16".equals(inputCode)) {
+			i = AsciiScanner.lastAscii16(buf, from, to, false);
+			return i < 0 ? -1 : i + 2;
+		}
+//		the following segmentation method is not suitable for UTF-16 or UTF-32
+//		since they are not compatible with ASCII code
+		i = AsciiScanner.lastAscii(buf, from + 1, to);
+		return i < 0 ? -1 : i + 1;
+	}
+
+	/**
+	 * byte[]版本，见{@link #findSplit(ByteBuffer, int, int, String)}。
+	 */
+	public static int findSplit(byte[] buf, int from, int to, String inputCode) {
+		return findSplit(ByteBuffer.wrap(buf), from, to, inputCode);
+	}
+
+	/**
+	 * 在buf的[from, to)范围内从前向后查找第一个分块位置，用于从文件中间开始读取的数据。
+	 * @return	&nbsp;第一个ASCII字符之后的位置，在(from, to]之间；找不到时返回-1
+	 */
+	public static int findFirstSplit(byte[] buf, int from, int to, String inputCode) {
+		ByteBuffer wrapped = ByteBuffer.wrap(buf);
+		int i;
+		if ("UTF-16LE".equals(inputCode)) {
+			i = AsciiScanner.firstAscii16(wrapped, from, to, true);
+			return i < 0 ? -1 : i + 2;
+		} else if ("UTF-16BE".equals(inputCode) || "UTF-16".equals(inputCode)) {
+			i = AsciiScanner.firstAscii16(wrapped, from, to, false);
+			return i < 0 ? -1 : i + 2;
+		}
+		i = AsciiScanner.firstAscii(wrapped, from, to);
+		return i < 0 ? -1 : i + 1;
+	}
+
+	/**
+	 * 找不到分块位置时打印错误信息。
+	 * @param size		&nbsp;分块大小
+	 * @param inputCode	&nbsp;数据的编码
+	 */
+	public static void reportFailure(int size, String inputCode) {
+		ConvertMetrics.global().recordSplitFailure();
+		if (inputCode.startsWith("UTF-16")) {
+			System.err.println("File Segmentation Failed. Failed to find an "
+			+ "ASCII character(0x0000-0x007F) in a segment size of "+
+			size +" bytes\n"+"Plese adjust the segmentation size.");
+		} else {
+			System.err.println("File Segmentation Failed. Failed to find an "
+			+ "ASCII character(0-127) in a segment size of "+
+			size +" bytes\n"+"Plese adjust the segmentation size.");
+		}
+	}
+}
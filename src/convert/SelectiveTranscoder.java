@@ -0,0 +1,416 @@
+package convert;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**<p>
+ * 选择性修复(selective repair)。用于正确的中文、ASCII和乱码混在一起的文件，例如多个来源合并的导出文件：
+ * 对整个文件应用编码链会把本来正确的中文也变成乱码，所以只转换可疑的部分，其余字符原样输出。</p><p>
+ * 输入按inputCode解码后逐个字符分类：能用middleCode编码为单个非ASCII字节的字符(例如Windows-1252的Æ·Ã)
+ * 是可疑的乱码字符，连续的乱码字符组成一段(run)；originCode双字节字符的尾字节可能是ASCII字符，
+ * 所以一段的末尾如果是不完整的字符，紧接着的ASCII字符也属于这一段。
+ * 正确的汉字无法用middleCode编码，ASCII字符不是乱码，都原样输出。</p><p>
+ * 每一段的middleCode字节按originCode解码，结果大多是常用的中日韩字符(见ChainDetector)时才使用转换结果，
+ * 否则原样输出这一段，例如Müller、café中的拉丁字母不会被误转换。
+ * 无效字节(例如乱码中丢失的字节)把一段分成两部分，分别判断，无效字节对应的字符原样输出。</p><p>
+ * middleCode必须是单字节编码。inputCode与outputCode相同时(限于UTF-8、UTF-16LE、UTF-16BE和单字节编码，
+ * 这些编码可以由字符算出它在输入中的字节数)，不是乱码的部分不再按outputCode重新编码，而是记录它在输入中的位置，
+ * 直接复制输入的字节，只有乱码的一段才解码再编码；无效字节也原样复制。</p><p>
+ * 与StreamingTranscoder一样，每一步都保留未处理完的数据接着下一次输入继续转换，不需要按ASCII字符分块。
+ * 所有缓冲区在构造时分配。本类的实例不是线程安全的，每个线程应使用自己的实例。</p>
+ * @author 何晶   He, Jing
+ */
+public final class SelectiveTranscoder {
+	//默认的缓冲区大小
+	public static final int DEFAULT_BUFFER_SIZE = 64 << 10;
+	//紧挨着ASCII字母的一段(例如拉丁文单词中的Müller、Straße)，转换结果中至少要有的常用中日韩字符数
+	private static final int MIN_COMMON_IN_WORD = 2;
+
+	private final CharsetDecoder inputDecoder;
+	private final CharsetDecoder originDecoder;
+	private final CharsetEncoder outputEncoder;
+	//字符 -> 乱码字符在middleCode中的字节(0x80-0xFF)，不是乱码字符时为-1
+	private final short[] middleByte;
+	//解码后的输入，平时处于写入状态
+	private final CharBuffer chars;
+	//当前一段的middleCode字节和原来的字符，一一对应，处于写入状态
+	private final ByteBuffer run;
+	private final CharBuffer runChars;
+	//run中已经交给originDecoder的字节数
+	private int decoded;
+	//当前一段的转换结果
+	private final CharBuffer repaired;
+	//等待按outputCode编码的字符和编码后的字节，处于写入状态
+	private final CharBuffer text;
+	private final ByteBuffer bytes;
+	private WritableByteChannel sink;
+	private long written;
+	//直接复制字节时每个字符的输入字节数，UTF-8为0(按字符计算)，不直接复制时为-1
+	private final int copyUnit;
+	//本次convert()的输入，下一个字符在其中的位置，以及正在复制的一段的开始位置(没有时为-1)
+	private ByteBuffer input;
+	private int bytePos;
+	private int cleanStart = -1;
+	//上一个字符，当前一段之前的字符，以及结束当前一段的字符(没有时为0)，用于判断一段是否在拉丁文单词中
+	private char last;
+	private char before;
+	private char next;
+	//转换和原样输出的段数
+	private long repairedRuns;
+	private long keptRuns;
+
+	public SelectiveTranscoder(String inputCode, String middleCode, String originCode, String outputCode) {
+		this(Charset.forName(inputCode), Charset.forName(middleCode), Charset.forName(originCode),
+				Charset.forName(outputCode), DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize	&nbsp;缓冲区大小(字节或字符)，也是一次转换的一段的最大长度，更长的段分成几次转换
+	 * @throws IllegalArgumentException middleCode不是单字节编码时
+	 */
+	public SelectiveTranscoder(Charset input, Charset middle, Charset origin, Charset output, int bufferSize) {
+		if (!middle.canEncode() || middle.newEncoder().maxBytesPerChar() != 1.0f) {
+			throw new IllegalArgumentException("Selective repair requires a single-byte middle encoding, got "
+					+ middle.name() + ".");
+		}
+		copyUnit = copyUnit(input, output);
+		//when copying, invalid input is reported so that its bytes can be copied as well
+		CodingErrorAction onError = copyUnit < 0 ? CodingErrorAction.REPLACE : CodingErrorAction.REPORT;
+		inputDecoder = input.newDecoder().onMalformedInput(onError).onUnmappableCharacter(onError);
+		originDecoder = origin.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		outputEncoder = output.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		middleByte = middleTable(middle);
+		int size = Math.max(bufferSize, 64);
+		chars = CharBuffer.allocate(size);
+		run = ByteBuffer.allocate(size);
+		runChars = CharBuffer.allocate(size);
+		repaired = CharBuffer.allocate(size * 2);
+		text = CharBuffer.allocate(size);
+		bytes = ByteBuffer.allocate(size * 4);
+	}
+
+	/**
+	 * 清空所有未处理完的数据，以便转换新的数据流。转换和原样输出的段数不会清零。
+	 */
+	public void reset() {
+		inputDecoder.reset();
+		originDecoder.reset();
+		outputEncoder.reset();
+		chars.clear();
+		clearRun();
+		text.clear();
+		bytes.clear();
+		cleanStart = -1;
+		last = 0;
+		before = 0;
+		next = 0;
+	}
+
+	/** 已转换的段数。 */
+	public long getRepairedRuns() {
+		return repairedRuns;
+	}
+
+	/** 看起来像乱码、但转换结果不可信而原样输出的段数。 */
+	public long getKeptRuns() {
+		return keptRuns;
+	}
+
+	/**
+	 * 转换in中的数据并写入out。in末尾不完整的字符会留在in中，调用者应该compact()后接上后面的数据再次调用。
+	 * 没有结束的一段会保留到下一次调用；endOfInput为true时把所有数据全部输出。
+	 * @param in			&nbsp;输入
+	 * @param endOfInput	&nbsp;是否为最后一段输入
+	 * @param out			&nbsp;输出
+	 * @throws IOException	&nbsp;写入out失败时
+	 */
+	public void convert(ByteBuffer in, boolean endOfInput, WritableByteChannel out) throws IOException {
+		long start = System.nanoTime();
+		int len = in.remaining();
+		sink = out;
+		written = 0;
+		input = in;
+		try {
+			CoderResult cr;
+			do {
+				bytePos = in.position();
+				cr = inputDecoder.decode(in, chars, endOfInput);
+				classify();
+				if (cr.isError()) {
+					//only when copying: the invalid bytes are part of the clean text
+					endRun();
+					if (cleanStart < 0) cleanStart = in.position();
+					in.position(in.position() + cr.length());
+					bytePos = in.position();
+				}
+			} while (cr.isOverflow() || cr.isError());
+			if (endOfInput) {
+				do {
+					cr = inputDecoder.flush(chars);
+					classify();
+				} while (cr.isOverflow());
+				endRun();
+			}
+			//the bytes of in are only valid during this call
+			if (cleanStart >= 0) copyClean(bytePos);
+			encodeText(endOfInput);
+			writeBytes();
+		} finally {
+			sink = null;
+			input = null;
+			cleanStart = -1;
+			//the final call after the last read usually has nothing left, it is not a segment
+			if (in.remaining() < len || written > 0) {
+				ConvertMetrics.global().recordSegment(len - in.remaining(), written, System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * 从in读取全部数据，转换后写入out，完成后reset()。
+	 * @param in		&nbsp;输入
+	 * @param out		&nbsp;输出
+	 * @param buffer	&nbsp;读取用的缓冲区，可重复使用
+	 * @throws IOException
+	 */
+	public void convert(ReadableByteChannel in, WritableByteChannel out, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		while (in.read(buffer) != -1) {
+			buffer.flip();
+			convert(buffer, false, out);
+			buffer.compact();
+		}
+		buffer.flip();
+		convert(buffer, true, out);
+		reset();
+	}
+
+	/**
+	 * 逐个字符分类，乱码字符加入当前一段，其他字符结束当前一段后原样输出。
+	 */
+	private void classify() throws IOException {
+		chars.flip();
+		while (chars.hasRemaining()) {
+			char c = chars.get();
+			int at = bytePos;
+			if (copyUnit > 0) {
+				bytePos += copyUnit;
+			} else if (copyUnit == 0) {
+				bytePos += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+			}
+			int m = middleByte[c];
+			//the trail byte of a double-byte character, but a single Latin letter followed by an ASCII letter
+			//(Über, Straße) is a word, not a character
+			if (m < 0 && c < 0x80 && run.position() > 0 && (run.position() > 1 || !isLetter(c)) && decodeRun()) {
+				m = c;
+			}
+			if (m >= 0) {
+				if (cleanStart >= 0) copyClean(at);
+				if (run.position() == 0) before = last;
+				if (!run.hasRemaining()) {
+					//keep the incomplete tail, if any, for the next part of the run
+					decodeRun();
+					emit(decoded);
+				}
+				run.put((byte) m);
+				runChars.put(c);
+			} else if (copyUnit >= 0) {
+				next = c;
+				endRun();
+				next = 0;
+				if (cleanStart < 0) cleanStart = at;
+			} else {
+				next = c;
+				endRun();
+				next = 0;
+				if (!text.hasRemaining()) encodeText(false);
+				text.put(c);
+			}
+			last = c;
+		}
+		chars.clear();
+	}
+
+	/**
+	 * 把当前一段中还没有解码的字节交给originDecoder。遇到无效字节时，先输出之前的部分，
+	 * 无效字节对应的字符原样输出，然后从无效字节之后继续。
+	 * @return	&nbsp;当前一段的末尾是否为不完整的字符
+	 */
+	private boolean decodeRun() throws IOException {
+		while (true) {
+			int end = run.position();
+			run.flip();
+			run.position(decoded);
+			CoderResult cr = originDecoder.decode(run, repaired, false);
+			decoded = run.position();
+			run.limit(run.capacity());
+			run.position(end);
+			if (!cr.isError()) return decoded < end;
+			emit(decoded + cr.length());
+		}
+	}
+
+	/**
+	 * 结束当前一段，末尾不完整的字符原样输出。
+	 */
+	private void endRun() throws IOException {
+		if (run.position() == 0) return;
+		decodeRun();
+		emit(run.position());
+	}
+
+	/**
+	 * 输出当前一段中已经解码的部分：转换结果可信时输出转换结果，否则原样输出；
+	 * 再把decoded到upTo之间的字符原样输出。upTo之后的部分留在当前一段中。
+	 */
+	private void emit(int upTo) throws IOException {
+		int end = run.position();
+		if (decoded > 0) {
+			if (isPlausible(repaired, isLetter(before) || isLetter(next))) {
+				repaired.flip();
+				put(repaired);
+				repairedRuns++;
+			} else {
+				upTo = Math.max(upTo, decoded);
+				decoded = 0;
+			}
+		}
+		if (upTo > decoded) {
+			runChars.flip();
+			runChars.limit(upTo).position(decoded);
+			put(runChars);
+			keptRuns++;
+		}
+		//bytes and chars of a run are one to one
+		run.flip();
+		run.position(upTo);
+		run.compact();
+		runChars.limit(end).position(upTo);
+		runChars.compact();
+		repaired.clear();
+		decoded = 0;
+		originDecoder.reset();
+	}
+
+	/**
+	 * 把输入中[cleanStart, to)的字节直接复制到输出缓冲区。之前的转换结果先按outputCode编码，保持顺序。
+	 */
+	private void copyClean(int to) throws IOException {
+		encodeText(false);
+		int position = input.position();
+		int limit = input.limit();
+		input.position(cleanStart);
+		while (input.position() < to) {
+			if (!bytes.hasRemaining()) writeBytes();
+			input.limit(Math.min(to, input.position() + bytes.remaining()));
+			bytes.put(input);
+		}
+		input.limit(limit).position(position);
+		cleanStart = -1;
+	}
+
+	/**
+	 * @return	&nbsp;可以直接复制字节时每个字符的输入字节数，UTF-8为0；inputCode与outputCode不同等情况为-1
+	 */
+	private static int copyUnit(Charset input, Charset output) {
+		if (!input.equals(output)) return -1;
+		if ("UTF-8".equals(input.name())) return 0;
+		//UTF-16 itself would strip the BOM and write it again
+		if ("UTF-16LE".equals(input.name()) || "UTF-16BE".equals(input.name())) return 2;
+		if (input.canEncode() && input.newEncoder().maxBytesPerChar() == 1.0f) return 1;
+		return -1;
+	}
+
+	private void clearRun() {
+		run.clear();
+		runChars.clear();
+		repaired.clear();
+		decoded = 0;
+		originDecoder.reset();
+	}
+
+	/**
+	 * 转换结果是否可信：至少有一个常用的中日韩字符，且常用字符超过非ASCII字符的一半。
+	 * 紧挨着ASCII字母的一段更可能是拉丁文单词中的字母，例如Straße中的ß加上e正好是GBK的一个常用字，
+	 * 所以至少要有两个常用字符。
+	 * @param chars	&nbsp;处于写入状态的转换结果
+	 */
+	private static boolean isLetter(char c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+	}
+
+	private static boolean isPlausible(CharBuffer chars, boolean inWord) {
+		int common = 0;
+		int total = 0;
+		for (int i = 0; i < chars.position(); i++) {
+			char c = chars.get(i);
+			if (c < 0x80) continue;
+			total++;
+			if (ChainDetector.isCommon(c)) common++;
+		}
+		return common >= (inWord ? MIN_COMMON_IN_WORD : 1) && common * 2 > total;
+	}
+
+	private void put(CharBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			if (!text.hasRemaining()) encodeText(false);
+			int n = Math.min(src.remaining(), text.remaining());
+			int limit = src.limit();
+			src.limit(src.position() + n);
+			text.put(src);
+			src.limit(limit);
+		}
+	}
+
+	private void encodeText(boolean end) throws IOException {
+		text.flip();
+		CoderResult cr;
+		do {
+			cr = outputEncoder.encode(text, bytes, end);
+			if (cr.isOverflow()) writeBytes();
+		} while (cr.isOverflow());
+		if (end) {
+			do {
+				cr = outputEncoder.flush(bytes);
+				if (cr.isOverflow()) writeBytes();
+			} while (cr.isOverflow());
+		}
+		text.compact();
+	}
+
+	private void writeBytes() throws IOException {
+		bytes.flip();
+		written += bytes.remaining();
+		while (bytes.hasRemaining()) {
+			sink.write(bytes);
+		}
+		bytes.clear();
+	}
+
+	private static short[] middleTable(Charset middle) {
+		//only chars that round-trip through a single non-ASCII byte
+		short[] table = new short[65536];
+		Arrays.fill(table, (short) -1);
+		byte[] one = new byte[1];
+		for (int b = 0x80; b < 0x100; b++) {
+			one[0] = (byte) b;
+			String s = new String(one, middle);
+			char c = s.charAt(0);
+			if (s.length() == 1 && c != '\uFFFD' && Arrays.equals(s.getBytes(middle), one)) {
+				table[c] = (short) b;
+			}
+		}
+		return table;
+	}
+}
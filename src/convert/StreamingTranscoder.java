@@ -0,0 +1,342 @@
+package convert;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**<p>
+ * 流式转码器。把inputCode -&gt; middleCode -&gt; originCode -&gt; outputCode四步转换
+ * 串成四个可重复使用的CharsetDecoder/CharsetEncoder，每一步之间用固定大小的缓冲区连接。</p><p>
+ * 每一步都保留未处理完的数据(例如被截断在缓冲区末尾的UTF-8字符或GBK双字节的首字节)，
+ * 与下一次输入的数据接在一起继续转换，所以不需要按ASCII字符分块：
+ * 没有任何ASCII字符的长段落(例如连续的中文或UTF-16文本)也可以正确转换，不会出现"File Segmentation Failed"。</p><p>
+ * 无法解析或无法映射的字符与String方法一样替换为?或U+FFFD，结果与对整个文件调用一次realConvert2()相同。</p><p>
+ * 四个编码都与ASCII兼容时(见AsciiScanner.isAsciiCompatible())，各步之间没有未处理完的数据的位置上
+ * 至少MIN_ASCII_RUN个字节的连续ASCII字符不经过四步转换，直接写入输出。</p><p>
+ * decode()只执行前三步，把修复后的文本交给CharSink，用于同时输出多种编码(见FanOutConvert)。</p><p>
+ * 替换的字符数、输入输出字节数和耗时记录在ConvertMetrics.global()中，每次convert(ByteBuffer, ...)调用记为一块。</p><p>
+ * 所有缓冲区在构造时分配，转换过程中重复使用。本类的实例不是线程安全的，每个线程应使用自己的实例。</p>
+ * @author 何晶   He, Jing
+ */
+public final class StreamingTranscoder {
+	//默认的缓冲区大小
+	public static final int DEFAULT_BUFFER_SIZE = 64 << 10;
+	//直接写入输出的ASCII字符的最小长度，较短的ASCII字符与其他字符一起转换，以免把输入切得太碎
+	public static final int MIN_ASCII_RUN = 256;
+
+	private final CharsetDecoder inputDecoder;
+	private final CharsetEncoder middleEncoder;
+	private final CharsetDecoder originDecoder;
+	private final CharsetEncoder outputEncoder;
+	//各步之间的缓冲区，平时处于写入状态
+	private final CharBuffer chars1;
+	private final ByteBuffer bytes2;
+	private final CharBuffer chars3;
+	private final ByteBuffer bytes4;
+	//替换字符，replacement()每次都会复制，所以预先取出
+	private final String inputReplacement;
+	private final byte[] middleReplacement;
+	private final String originReplacement;
+	private final byte[] outputReplacement;
+	//ASCII字符经过四步转换后不变，可以直接写入输出
+	private final boolean asciiPassthrough;
+	private WritableByteChannel sink;
+	//decode()的输出，为null时执行全部四步
+	private CharSink charSink;
+	//本次convert()调用中写出的字节数和替换的字符数
+	private long written;
+	private long replaced;
+
+	public StreamingTranscoder(String inputCode, String middleCode, String originCode, String outputCode) {
+		this(inputCode, middleCode, originCode, outputCode, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize	&nbsp;每一步的缓冲区大小(字节或字符)
+	 * @throws java.nio.charset.UnsupportedCharsetException 编码不受支持时
+	 */
+	public StreamingTranscoder(String inputCode, String middleCode, String originCode, String outputCode,
+			int bufferSize) {
+		this(Charset.forName(inputCode), Charset.forName(middleCode), Charset.forName(originCode),
+				Charset.forName(outputCode), bufferSize);
+	}
+
+	/**
+	 * 使用已有的Charset实例，不需要再按名称查找编码。
+	 * @param bufferSize	&nbsp;每一步的缓冲区大小(字节或字符)
+	 */
+	public StreamingTranscoder(Charset input, Charset middle, Charset origin, Charset output, int bufferSize) {
+		inputDecoder = reporting(input.newDecoder());
+		middleEncoder = reporting(middle.newEncoder());
+		originDecoder = reporting(origin.newDecoder());
+		outputEncoder = reporting(output.newEncoder());
+		inputReplacement = inputDecoder.replacement();
+		middleReplacement = middleEncoder.replacement();
+		originReplacement = originDecoder.replacement();
+		outputReplacement = outputEncoder.replacement();
+		asciiPassthrough = AsciiScanner.isAsciiCompatible(input) && AsciiScanner.isAsciiCompatible(middle)
+				&& AsciiScanner.isAsciiCompatible(origin) && AsciiScanner.isAsciiCompatible(output);
+		int size = Math.max(bufferSize, 64);
+		chars1 = CharBuffer.allocate(size);
+		bytes2 = ByteBuffer.allocate(size);
+		chars3 = CharBuffer.allocate(size);
+		bytes4 = ByteBuffer.allocate(size * 4);
+	}
+
+	/**
+	 * 清空所有未处理完的数据，以便转换新的数据流。
+	 */
+	public void reset() {
+		inputDecoder.reset();
+		middleEncoder.reset();
+		originDecoder.reset();
+		outputEncoder.reset();
+		chars1.clear();
+		bytes2.clear();
+		chars3.clear();
+		bytes4.clear();
+	}
+
+	/**
+	 * 转换in中的数据并写入out。in末尾不完整的字符会留在in中(position不会越过它)，
+	 * 调用者应该compact()后接上后面的数据再次调用；endOfInput为true时不完整的字符按无效数据替换。
+	 * @param in			&nbsp;输入
+	 * @param endOfInput	&nbsp;是否为最后一段输入。为true时会把所有数据全部输出
+	 * @param out			&nbsp;输出
+	 * @throws IOException	&nbsp;写入out失败时
+	 */
+	public void convert(ByteBuffer in, boolean endOfInput, WritableByteChannel out) throws IOException {
+		long start = System.nanoTime();
+		int len = in.remaining();
+		sink = out;
+		written = 0;
+		replaced = 0;
+		try {
+			if (asciiPassthrough && charSink == null) passAsciiRuns(in);
+			decodeInput(in, endOfInput);
+			if (endOfInput) {
+				CoderResult cr;
+				do {
+					cr = inputDecoder.flush(chars1);
+					drainChars1(false);
+				} while (cr.isOverflow());
+				drainChars1(true);
+			}
+		} finally {
+			sink = null;
+			ConvertMetrics metrics = ConvertMetrics.global();
+			metrics.recordReplacements(replaced);
+			//the final call after the last read usually has nothing left, it is not a segment
+			if (in.remaining() < len || written > 0) {
+				metrics.recordSegment(len - in.remaining(), written, System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * 与convert(ByteBuffer, boolean, WritableByteChannel)相同，但只执行前三步，
+	 * 把修复后的文本(按originCode解码后的字符)交给out，不按outputCode编码。
+	 * 交给out的文本不会在代理对(surrogate pair)的中间截断。
+	 * @param in			&nbsp;输入
+	 * @param endOfInput	&nbsp;是否为最后一段输入
+	 * @param out			&nbsp;修复后的文本
+	 * @throws IOException	&nbsp;out抛出IOException时
+	 */
+	public void decode(ByteBuffer in, boolean endOfInput, CharSink out) throws IOException {
+		charSink = out;
+		try {
+			convert(in, endOfInput, (WritableByteChannel) null);
+		} finally {
+			charSink = null;
+		}
+	}
+
+	/**
+	 * 从in读取全部数据，转换后写入out，完成后reset()。
+	 * @param in		&nbsp;输入
+	 * @param out		&nbsp;输出
+	 * @param buffer	&nbsp;读取用的缓冲区，可重复使用
+	 * @throws IOException
+	 */
+	public void convert(ReadableByteChannel in, WritableByteChannel out, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		while (in.read(buffer) != -1) {
+			buffer.flip();
+			convert(buffer, false, out);
+			buffer.compact();
+		}
+		buffer.flip();
+		convert(buffer, true, out);
+		reset();
+	}
+
+	/**
+	 * 转换in中的数据，其中较长的ASCII字符直接写入输出。返回时in中只剩下最后一段没有长ASCII字符的数据。
+	 */
+	private void passAsciiRuns(ByteBuffer in) throws IOException {
+		int limit = in.limit();
+		try {
+			while (in.position() < limit) {
+				int pos = in.position();
+				if (chars1.position() == 0 && bytes2.position() == 0 && chars3.position() == 0) {
+					//every step is at a character boundary, the run is plain ASCII text
+					int run = AsciiScanner.asciiRun(in, pos, limit);
+					if (run >= MIN_ASCII_RUN) {
+						in.limit(pos + run);
+						written += run;
+						while (in.hasRemaining()) {
+							sink.write(in);
+						}
+						in.limit(limit);
+						continue;
+					}
+				}
+				int stop = AsciiScanner.findAsciiRun(in, pos + 1, limit, MIN_ASCII_RUN);
+				if (stop < 0) return;
+				in.limit(stop);
+				decodeInput(in, false);
+				in.limit(limit);
+				//an incomplete character before the run, convert it together with the run
+				if (in.position() < stop) return;
+			}
+		} finally {
+			in.limit(limit);
+		}
+	}
+
+	private void decodeInput(ByteBuffer in, boolean end) throws IOException {
+		CoderResult cr;
+		do {
+			cr = decode(inputDecoder, inputReplacement, in, chars1, end);
+			drainChars1(false);
+		} while (cr.isOverflow());
+	}
+
+	private void drainChars1(boolean end) throws IOException {
+		chars1.flip();
+		CoderResult cr;
+		do {
+			cr = encode(middleEncoder, middleReplacement, chars1, bytes2, end);
+			drainBytes2(false);
+		} while (cr.isOverflow());
+		if (end) {
+			do {
+				cr = middleEncoder.flush(bytes2);
+				drainBytes2(false);
+			} while (cr.isOverflow());
+			drainBytes2(true);
+		}
+		chars1.compact();
+	}
+
+	private void drainBytes2(boolean end) throws IOException {
+		bytes2.flip();
+		CoderResult cr;
+		do {
+			cr = decode(originDecoder, originReplacement, bytes2, chars3, end);
+			drainChars3(false);
+		} while (cr.isOverflow());
+		if (end) {
+			do {
+				cr = originDecoder.flush(chars3);
+				drainChars3(false);
+			} while (cr.isOverflow());
+			drainChars3(true);
+		}
+		bytes2.compact();
+	}
+
+	private void drainChars3(boolean end) throws IOException {
+		chars3.flip();
+		if (charSink != null) {
+			//keep a trailing high surrogate until its pair arrives
+			int limit = chars3.limit();
+			if (!end && limit > 0 && Character.isHighSurrogate(chars3.get(limit - 1))) {
+				chars3.limit(limit - 1);
+			}
+			if (chars3.hasRemaining()) charSink.write(chars3);
+			chars3.position(chars3.limit());
+			chars3.limit(limit);
+			chars3.compact();
+			return;
+		}
+		CoderResult cr;
+		do {
+			cr = encode(outputEncoder, outputReplacement, chars3, bytes4, end);
+			writeBytes4();
+		} while (cr.isOverflow());
+		if (end) {
+			do {
+				cr = outputEncoder.flush(bytes4);
+				writeBytes4();
+			} while (cr.isOverflow());
+		}
+		chars3.compact();
+	}
+
+	private void writeBytes4() throws IOException {
+		bytes4.flip();
+		written += bytes4.remaining();
+		while (bytes4.hasRemaining()) {
+			sink.write(bytes4);
+		}
+		bytes4.clear();
+	}
+
+	/**
+	 * 与CodingErrorAction.REPLACE相同，但替换由本类完成，以便统计替换的字符数。
+	 * 输出空间不足以放下替换字符时返回OVERFLOW，下次调用时会再次报告同一个错误。
+	 */
+	private CoderResult decode(CharsetDecoder decoder, String replacement, ByteBuffer in, CharBuffer out,
+			boolean end) {
+		CoderResult cr = decoder.decode(in, out, end);
+		while (cr.isError()) {
+			if (out.remaining() < replacement.length()) return CoderResult.OVERFLOW;
+			out.put(replacement);
+			in.position(in.position() + cr.length());
+			replaced++;
+			cr = decoder.decode(in, out, end);
+		}
+		return cr;
+	}
+
+	private CoderResult encode(CharsetEncoder encoder, byte[] replacement, CharBuffer in, ByteBuffer out,
+			boolean end) {
+		CoderResult cr = encoder.encode(in, out, end);
+		while (cr.isError()) {
+			if (out.remaining() < replacement.length) return CoderResult.OVERFLOW;
+			out.put(replacement);
+			in.position(in.position() + cr.length());
+			replaced++;
+			cr = encoder.encode(in, out, end);
+		}
+		return cr;
+	}
+
+	private static CharsetDecoder reporting(CharsetDecoder decoder) {
+		//errors are replaced in decode(), same as new String(byte[], charset)
+		return decoder.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+	}
+
+	private static CharsetEncoder reporting(CharsetEncoder encoder) {
+		//errors are replaced in encode(), same as String.getBytes(charset)
+		return encoder.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+	}
+
+	/** 接收decode()修复后的文本。 */
+	public interface CharSink {
+		/**
+		 * @param chars	&nbsp;修复后的文本，只在本次调用中有效，调用结束后缓冲区会被重复使用
+		 */
+		void write(CharBuffer chars) throws IOException;
+	}
+}
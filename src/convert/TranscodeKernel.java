@@ -0,0 +1,524 @@
+package convert;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**<p>
+ * 预先编译好的转码核心(Kernel)。realConvert2()对每一块数据都要做四次完整的转换：
+ * byte[] -&gt; String -&gt; byte[] -&gt; String -&gt; byte[]，每一步都要分配新的对象。
+ * 对于固定的编码链(inputCode, middleCode, originCode, outputCode)，其实每个字符的转换结果都是固定的，
+ * 所以可以在启动时把整条链预先算成几张查找表，转换时只需一次遍历，直接写入可重复使用的输出缓冲区。</p><p>
+ * 以UTF-8 -&gt; Windows-1252 -&gt; GBK -&gt; UTF-8为例：
+ * 每个UTF-8字符查表得到一个Windows-1252字节，两个字节组成一个GBK双字节，再查表得到汉字，最后查表得到输出的字节。
+ * 无法映射的字符、无效的GBK双字节等情况，查找表中也预先记录了String方法的替换结果(?或U+FFFD)，
+ * 非法的UTF-8字节则逐个序列交给CharsetDecoder处理，所以转换结果与realConvert2()完全一致。</p><p>
+ * 查找表只适用于以下情况：inputCode为UTF-8或单字节编码，middleCode为单字节编码，
+ * originCode为兼容ASCII的单/双字节编码(GBK、Big5、Shift_JIS等)，outputCode每个字符不超过3个字节且无状态。
+ * 不满足条件的编码链，以及查找表无法覆盖的极少数情况，会整块退回到原来的String转换方法。</p><p>
+ * ASCII字符经过整条链后不变时(绝大多数编码链)，连续的ASCII字符每次8个字节直接复制到输出，不再逐个字节查表。</p><p>
+ * 本类的实例不可变，可以在多个线程之间共享。</p>
+ * @author 何晶   He, Jing
+ */
+public final class TranscodeKernel {
+	//originSingle/originDouble中的特殊值
+	private static final int UNCOVERED = -1;
+	private static final int LEAD = -2;
+	//无效字节：输出替换字符，只消耗一个字节(双字节时尾字节重新作为新字符的开始处理)
+	private static final int BAD1 = -3;
+	//无效双字节：输出替换字符，消耗两个字节
+	private static final int BAD2 = -4;
+	//已构建的转码核心，见forChain()
+	private static final ConcurrentMap<String, TranscodeKernel> CACHE =
+			new ConcurrentHashMap<String, TranscodeKernel>();
+
+	private final String inputCode;
+	private final String middleCode;
+	private final String originCode;
+	private final String outputCode;
+	private final Charset inputCharset;
+	private final Charset middleCharset;
+	private final Charset originCharset;
+	private final Charset outputCharset;
+	//每个输入字节最多可能产生的输出字节数，用于确定输出缓冲区的大小
+	private final float expansion;
+
+	private final boolean tabled;
+	private final boolean utf8Input;
+	//单字节输入编码：字节 -> 字符
+	private final char[] inputChar;
+	//字符 -> middleCode字节
+	private final byte[] middleByte;
+	//增补字符(UTF-16代理对)在middleCode中的替换字节
+	private final byte supplementaryByte;
+	//middleCode字节 -> originCode单字节字符，或LEAD、BAD1、UNCOVERED
+	private final int[] originSingle;
+	//(首字节 << 8 | 尾字节) -> originCode双字节字符，或BAD1、BAD2、UNCOVERED
+	private final int[] originDouble;
+	//originCode解码时的替换字符，通常为U+FFFD
+	private final char originReplacement;
+	//字符 -> 输出字节，格式为 (替换标记 << 31 | 长度 << 24 | 第一字节 << 16 | 第二字节 << 8 | 第三字节)，0表示无法查表
+	private final int[] outputBytes;
+	//ASCII字符经过整条链后不变，可以直接复制
+	private final boolean asciiIdentity;
+
+	private TranscodeKernel(String inputCode, String middleCode, String originCode, String outputCode) {
+		this.inputCode = inputCode;
+		this.middleCode = middleCode;
+		this.originCode = originCode;
+		this.outputCode = outputCode;
+		inputCharset = Charset.forName(inputCode);
+		middleCharset = Charset.forName(middleCode);
+		originCharset = Charset.forName(originCode);
+		outputCharset = Charset.forName(outputCode);
+		expansion = inputCharset.newDecoder().maxCharsPerByte()
+				* middleCharset.newEncoder().maxBytesPerChar()
+				* originCharset.newDecoder().maxCharsPerByte()
+				* outputCharset.newEncoder().maxBytesPerChar();
+
+		utf8Input = "UTF-8".equals(inputCharset.name());
+		boolean singleByteInput = !utf8Input && isSingleByte(inputCharset);
+		byte[] supplementary = "\uD83D\uDE00".getBytes(middleCharset);
+		String replacement = originCharset.newDecoder().replacement();
+		if ((utf8Input || singleByteInput) && isSingleByte(middleCharset) && supplementary.length == 1
+				&& isAsciiDoubleByte(originCharset) && replacement.length() == 1
+				&& outputCharset.canEncode() && outputCharset.newEncoder().maxBytesPerChar() <= 3) {
+			tabled = true;
+			inputChar = singleByteInput ? inputTable(inputCharset) : null;
+			middleByte = middleTable(middleCharset);
+			supplementaryByte = supplementary[0];
+			originSingle = new int[256];
+			originDouble = new int[65536];
+			originTables(originCharset, originSingle, originDouble);
+			originReplacement = replacement.charAt(0);
+			outputBytes = outputTable(outputCharset);
+			asciiIdentity = asciiIdentity();
+		} else {
+			tabled = false;
+			inputChar = null;
+			middleByte = null;
+			supplementaryByte = 0;
+			originSingle = null;
+			originDouble = null;
+			originReplacement = 0;
+			outputBytes = null;
+			asciiIdentity = false;
+		}
+	}
+
+	/**
+	 * 取得指定编码链的转码核心。构建查找表需要遍历所有BMP字符，所以构建好的核心会缓存起来，
+	 * 同一编码链(例如批量转换的每个文件)重复调用时直接返回同一个实例。
+	 * @throws java.nio.charset.UnsupportedCharsetException 编码不受支持时
+	 * @throws java.nio.charset.IllegalCharsetNameException 编码名称不合法时
+	 */
+	public static TranscodeKernel forChain(String inputCode, String middleCode, String originCode, String outputCode) {
+		String key = inputCode + '\n' + middleCode + '\n' + originCode + '\n' + outputCode;
+		TranscodeKernel kernel = CACHE.get(key);
+		if (kernel == null) {
+			kernel = new TranscodeKernel(inputCode, middleCode, originCode, outputCode);
+			TranscodeKernel raced = CACHE.putIfAbsent(key, kernel);
+			if (raced != null) kernel = raced;
+		}
+		return kernel;
+	}
+
+	public boolean isChain(String inputCode, String middleCode, String originCode, String outputCode) {
+		return this.inputCode.equals(inputCode) && this.middleCode.equals(middleCode)
+				&& this.originCode.equals(originCode) && this.outputCode.equals(outputCode);
+	}
+
+	/** 该编码链是否可以使用查找表。为false时所有转换都使用String方法。 */
+	public boolean isTabled() {
+		return tabled;
+	}
+
+	/** ASCII字符经过整条链后是否不变，即纯ASCII的数据可以直接复制。 */
+	public boolean isAsciiIdentity() {
+		return asciiIdentity;
+	}
+
+	public String getInputCode() {
+		return inputCode;
+	}
+
+	public String getMiddleCode() {
+		return middleCode;
+	}
+
+	public String getOriginCode() {
+		return originCode;
+	}
+
+	public String getOutputCode() {
+		return outputCode;
+	}
+
+	/**
+	 * @param len	&nbsp;输入的字节数
+	 * @return		&nbsp;转换len个字节时，输出缓冲区至少需要的大小
+	 */
+	public int maxOutput(int len) {
+		return (int) Math.ceil((double) len * expansion) + 16;
+	}
+
+	/**
+	 * 转换in中position到limit之间的所有字节，并从out的position开始写入结果。
+	 * 返回时in.position()等于in.limit()，out.position()指向写入的结果之后。
+	 * out的剩余空间至少需要maxOutput(in.remaining())个字节。
+	 * @param in	&nbsp;输入，必须是完整的一块，即结尾不能截断字符
+	 * @param out	&nbsp;输出缓冲区
+	 */
+	public void convert(ByteBuffer in, ByteBuffer out) {
+		long start = System.nanoTime();
+		int len = in.remaining();
+		int o = out.position();
+		int lost = transcode(in, out);
+		ConvertMetrics metrics = ConvertMetrics.global();
+		metrics.recordReplacements(lost);
+		metrics.recordSegment(len, out.position() - o, System.nanoTime() - start);
+	}
+
+	/**
+	 * 与convert(ByteBuffer, ByteBuffer)相同，但不记录到ConvertMetrics，
+	 * 用于很短的数据(例如表格中的一个字段)，由调用者按更大的单位记录。
+	 * @return	&nbsp;替换为?或U+FFFD的字符数
+	 */
+	public int transcode(ByteBuffer in, ByteBuffer out) {
+		int lost = tabled ? convertTabled(in, out) : -1;
+		if (lost < 0) {
+			lost = convertStrings(in, out);
+		}
+		return lost;
+	}
+
+	/**
+	 * 原来的四步String转换。
+	 * @return	&nbsp;替换字符的数量(估算)：middleCode中新增的?，加上originCode解码产生的替换字符
+	 */
+	private int convertStrings(ByteBuffer in, ByteBuffer out) {
+		byte[] valid = new byte[in.remaining()];
+		in.get(valid);
+		String step1 = new String(valid, inputCharset);
+		byte[] step2 = step1.getBytes(middleCharset);
+		String step3 = new String(step2, originCharset);
+		out.put(step3.getBytes(outputCharset));
+		int lost = 0;
+		for (byte b : step2) {
+			if (b == '?') lost++;
+		}
+		for (int i = 0; i < step1.length(); i++) {
+			if (step1.charAt(i) == '?') lost--;
+		}
+		String replacement = originCharset.newDecoder().replacement();
+		for (int i = step3.indexOf(replacement); i >= 0; i = step3.indexOf(replacement, i + 1)) {
+			lost++;
+		}
+		return Math.max(lost, 0);
+	}
+
+	/**
+	 * 转换in数组中从off开始的len个字节，返回新的数组。
+	 */
+	public byte[] convert(byte[] in, int off, int len) {
+		ByteBuffer out = ByteBuffer.allocate(maxOutput(len));
+		convert(ByteBuffer.wrap(in, off, len), out);
+		return Arrays.copyOf(out.array(), out.position());
+	}
+
+	/**
+	 * 查表转换。遇到查找表无法覆盖的情况时返回-1，此时in和out的position都不会改变。
+	 * @return	&nbsp;替换为?或U+FFFD的字符数
+	 */
+	private int convertTabled(ByteBuffer in, ByteBuffer out) {
+		int i = in.position();
+		int end = in.limit();
+		int o = out.position();
+		int lead = -1;
+		int lost = 0;
+		while (i < end) {
+			int b = in.get(i) & 0xFF;
+			if (b < 0x80 && lead < 0 && asciiIdentity) {
+				int n = copyAscii(in, i, end, out, o);
+				if (n > 0) {
+					i += n;
+					o += n;
+					continue;
+				}
+			}
+			int m;
+			if (!utf8Input) {
+				m = middleByte[inputChar[b]] & 0xFF;
+				//a non-ASCII byte that ends up as an ASCII byte was replaced
+				if (b >= 0x80 && m < 0x80) lost++;
+				i++;
+			} else if (b < 0x80) {
+				m = middleByte[b] & 0xFF;
+				i++;
+			} else {
+				int c = -1;
+				if (b >= 0xC2 && b <= 0xDF && i + 1 < end) {
+					int b1 = in.get(i + 1);
+					if ((b1 & 0xC0) == 0x80) {
+						c = ((b & 0x1F) << 6) | (b1 & 0x3F);
+						i += 2;
+					}
+				} else if (b >= 0xE0 && b <= 0xEF && i + 2 < end) {
+					int b1 = in.get(i + 1);
+					int b2 = in.get(i + 2);
+					int c3 = ((b & 0x0F) << 12) | ((b1 & 0x3F) << 6) | (b2 & 0x3F);
+					if ((b1 & 0xC0) == 0x80 && (b2 & 0xC0) == 0x80
+							&& c3 >= 0x800 && (c3 < 0xD800 || c3 > 0xDFFF)) {
+						c = c3;
+						i += 3;
+					}
+				}
+				if (c >= 0) {
+					m = middleByte[c] & 0xFF;
+					if (m < 0x80) lost++;
+				} else {
+					//4-byte sequences and malformed input, rare enough for a CharsetDecoder
+					long r = decodeOther(in, i, end);
+					if (r < 0) return -1;
+					m = (int) (r >>> 32) & 0xFF;
+					i += (int) r;
+					lost++;
+				}
+			}
+			int ch;
+			if (lead >= 0) {
+				ch = originDouble[(lead << 8) | m];
+				if (ch == BAD1) {
+					//the trail byte starts a new character
+					o = put(out, o, originReplacement);
+					if (o < 0) return -1;
+					lost++;
+					lead = -1;
+					ch = originSingle[m];
+				} else {
+					lead = -1;
+				}
+			} else {
+				ch = originSingle[m];
+			}
+			if (ch == LEAD) {
+				lead = m;
+				continue;
+			}
+			if (ch == BAD1 || ch == BAD2) {
+				ch = originReplacement;
+				lost++;
+			} else if (ch == UNCOVERED) {
+				return -1;
+			} else if (outputBytes[ch] < 0) {
+				lost++;
+			}
+			o = put(out, o, (char) ch);
+			if (o < 0) return -1;
+		}
+		//a dangling lead byte at the end of the block is malformed
+		if (lead >= 0) {
+			o = put(out, o, originReplacement);
+			if (o < 0) return -1;
+			lost++;
+		}
+		in.position(end);
+		out.position(o);
+		return lost;
+	}
+
+	/**
+	 * 从i开始复制连续的ASCII字节，每次8个字节，最后不足8个字节的部分逐个复制。
+	 * @return	&nbsp;复制的字节数
+	 */
+	private static int copyAscii(ByteBuffer in, int i, int end, ByteBuffer out, int o) {
+		boolean swap = in.order() != out.order();
+		int start = i;
+		int room = out.limit() - o;
+		while (end - i >= 8 && room - (i - start) >= 8) {
+			long w = in.getLong(i);
+			if ((w & 0x8080808080808080L) != 0) break;
+			out.putLong(o + i - start, swap ? Long.reverseBytes(w) : w);
+			i += 8;
+		}
+		//the rest of a mixed word, so the next word starts after it
+		while (i < end && i - start < room) {
+			byte b = in.get(i);
+			if (b < 0) break;
+			out.put(o + i - start, b);
+			i++;
+		}
+		return i - start;
+	}
+
+	private int put(ByteBuffer out, int o, char ch) {
+		int packed = outputBytes[ch];
+		if (packed == 0) return -1;
+		int n = (packed >>> 24) & 0x7F;
+		out.put(o++, (byte) (packed >>> 16));
+		if (n > 1) out.put(o++, (byte) (packed >>> 8));
+		if (n > 2) out.put(o++, (byte) packed);
+		return o;
+	}
+
+	/**
+	 * 使用CharsetDecoder处理查表路径不处理的UTF-8序列：4字节字符和非法字节。
+	 * @return	&nbsp;(middleCode字节 &lt;&lt; 32 | 消耗的字节数)，无法处理时返回-1
+	 */
+	private long decodeOther(ByteBuffer in, int i, int end) {
+		CharsetDecoder decoder = inputCharset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		ByteBuffer src = in.duplicate();
+		src.limit(end).position(i);
+		CharBuffer chars = CharBuffer.allocate(2);
+		CoderResult cr = decoder.decode(src, chars, true);
+		if (chars.position() == 2 && Character.isHighSurrogate(chars.get(0))) {
+			return ((long) (supplementaryByte & 0xFF) << 32) | (src.position() - i);
+		}
+		if (chars.position() == 0 && cr.isError()) {
+			//new String() replaces the malformed sequence with a single U+FFFD
+			return ((long) (middleByte['\uFFFD'] & 0xFF) << 32) | cr.length();
+		}
+		return -1;
+	}
+
+	private boolean asciiIdentity() {
+		for (int c = 0; c < 0x80; c++) {
+			if (inputChar != null && inputChar[c] != c) return false;
+			if (middleByte[c] != c || originSingle[c] != c || outputBytes[c] != (1 << 24 | c << 16)) return false;
+		}
+		return true;
+	}
+
+	private static boolean isSingleByte(Charset cs) {
+		return cs.canEncode() && cs.newEncoder().maxBytesPerChar() == 1.0f
+				&& cs.newDecoder().maxCharsPerByte() == 1.0f;
+	}
+
+	private static boolean isAsciiDoubleByte(Charset cs) {
+		if (!cs.canEncode() || cs.newEncoder().maxBytesPerChar() > 2.0f
+				|| cs.newDecoder().maxCharsPerByte() > 1.0f) {
+			return false;
+		}
+		byte[] ascii = new byte[128];
+		for (int b = 0; b < 128; b++) ascii[b] = (byte) b;
+		String s = new String(ascii, cs);
+		if (s.length() != 128) return false;
+		for (int b = 0; b < 128; b++) {
+			if (s.charAt(b) != b) return false;
+		}
+		return true;
+	}
+
+	private static char[] inputTable(Charset cs) {
+		//single-byte decoders replace each bad byte with exactly one char, same as new String()
+		char[] table = new char[256];
+		byte[] all = new byte[256];
+		for (int b = 0; b < 256; b++) all[b] = (byte) b;
+		new String(all, cs).getChars(0, 256, table, 0);
+		return table;
+	}
+
+	private static byte[] middleTable(Charset cs) {
+		//unmappable chars become the encoder's replacement, same as String.getBytes()
+		CharsetEncoder encoder = cs.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		byte[] table = new byte[65536];
+		char[] one = new char[1];
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		for (int c = 0; c < 65536; c++) {
+			if (Character.isSurrogate((char) c)) continue;
+			one[0] = (char) c;
+			encodeOne(encoder, one, buf);
+			table[c] = buf.get(0);
+		}
+		return table;
+	}
+
+	private static void originTables(Charset cs, int[] single, int[] dbl) {
+		CharsetDecoder decoder = cs.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		Arrays.fill(dbl, UNCOVERED);
+		byte[] pair = new byte[2];
+		CharBuffer chars = CharBuffer.allocate(4);
+		for (int b = 0; b < 256; b++) {
+			pair[0] = (byte) b;
+			decoder.reset();
+			chars.clear();
+			ByteBuffer in = ByteBuffer.wrap(pair, 0, 1);
+			CoderResult cr = decoder.decode(in, chars, false);
+			if (cr.isError()) {
+				single[b] = cr.length() == 1 ? BAD1 : UNCOVERED;
+			} else if (chars.position() == 1 && !in.hasRemaining() && !Character.isSurrogate(chars.get(0))) {
+				single[b] = chars.get(0);
+			} else if (chars.position() == 0 && in.hasRemaining()) {
+				single[b] = LEAD;
+			} else {
+				single[b] = UNCOVERED;
+			}
+		}
+		for (int lead = 0; lead < 256; lead++) {
+			if (single[lead] != LEAD) continue;
+			pair[0] = (byte) lead;
+			for (int trail = 0; trail < 256; trail++) {
+				pair[1] = (byte) trail;
+				decoder.reset();
+				chars.clear();
+				ByteBuffer in = ByteBuffer.wrap(pair);
+				CoderResult cr = decoder.decode(in, chars, true);
+				if (!cr.isError()) cr = decoder.flush(chars);
+				int idx = (lead << 8) | trail;
+				if (cr.isError()) {
+					//new String() emits one replacement and skips cr.length() bytes
+					if (in.position() == 0 && cr.length() == 1) dbl[idx] = BAD1;
+					else if (in.position() == 0 && cr.length() == 2) dbl[idx] = BAD2;
+				} else if (!in.hasRemaining() && chars.position() == 1 && !Character.isSurrogate(chars.get(0))) {
+					dbl[idx] = chars.get(0);
+				}
+			}
+		}
+	}
+
+	private static int[] outputTable(Charset cs) {
+		//unmappable chars become the encoder's replacement, same as String.getBytes()
+		CharsetEncoder encoder = cs.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		int[] table = new int[65536];
+		char[] one = new char[1];
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		for (int c = 0; c < 65536; c++) {
+			if (Character.isSurrogate((char) c)) continue;
+			one[0] = (char) c;
+			if (!encodeOne(encoder, one, buf)) continue;
+			int n = buf.position();
+			if (n < 1 || n > 3) continue;
+			int packed = n << 24;
+			for (int k = 0; k < n; k++) {
+				packed |= (buf.get(k) & 0xFF) << (16 - 8 * k);
+			}
+			//the sign bit marks the encoder's replacement for an unmappable char
+			if (!encoder.canEncode((char) c)) packed |= 0x80000000;
+			table[c] = packed;
+		}
+		return table;
+	}
+
+	private static boolean encodeOne(CharsetEncoder encoder, char[] one, ByteBuffer buf) {
+		encoder.reset();
+		buf.clear();
+		CoderResult cr = encoder.encode(CharBuffer.wrap(one), buf, true);
+		if (cr.isError()) return false;
+		return !encoder.flush(buf).isError();
+	}
+}
@@ -7,10 +7,13 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 /**<p>
@@ -35,10 +38,14 @@ public class UTF8ToANSI {
 	//由于转换大文件需要分块处理，segmentSize为分块大小，默认为4096字节，可以自行改动。
 	//关于文件分块的介绍请见segmentConvert()方法。
 	public static final int segmentSize = 4096;
+	//UTF-8 -> ISO-8859-1 -> GBK -> UTF-8，启动时构建一次，见TranscodeKernel
+	private static final TranscodeKernel KERNEL =
+			TranscodeKernel.forChain("UTF-8", "ISO-8859-1", "GBK", "UTF-8");
 	
 	/**
 	 * @param args		1 &nbsp;输入文件路径 	&nbsp; Input File Path 
 	 * @param args 		2 &nbsp;输出文件路径	&nbsp; Output File Path 
+	 * @param args 		3 &nbsp;可选，--nio：使用内存映射文件转换，见mappedConvert()
 	 * @throws IOException
 	 */
 	public static void main(String[] args) throws IOException {
@@ -47,7 +54,11 @@ public class UTF8ToANSI {
 		String inputPath = args[0];
 		String outputPath = args[1];
 		singleWordTest();
-		segmentConvert(inputPath,outputPath);
+		if (args.length > 2 && "--nio".equals(args[2])) {
+			mappedConvert(inputPath,outputPath);
+		} else {
+			segmentConvert(inputPath,outputPath);
+		}
 	}
 	public static void singleWordTest() throws CharacterCodingException, UnsupportedEncodingException{
 		String text = "Íå×ÐÂëÍ·";
@@ -65,78 +76,29 @@ public class UTF8ToANSI {
 		原来的GBK编码已经面目全非，不太好区分每个汉字的开始和结束位置。
 		所以干脆查找UTF-8中的标准ASCII的字符，即单个字节十进制值为0-127范围内的字符，
 		以ASCII字符后的位置来对文件进行分块(Segementation)，再逐块转换。
-		但如果在默认的分块大小(Segment Size)一个ASCII字符都找不到的话，就会导致转换失败。</p>
+		但如果在默认的分块大小(Segment Size)一个ASCII字符都找不到的话，就会导致转换失败。</p><p>
+		原来每一块都要把有效部分和剩下的部分复制到新的数组中再拼接，现在改用SegmentPipeline，
+		在一个固定的缓冲区中完成，稳定运行时不分配任何对象。</p>
 	 * @param inputPath		&nbsp;输入文件路径 	&nbsp; Input File Path 
 	 * @param outputPath	&nbsp;输出文件路径	&nbsp; Output File Path 
 	 * @throws IOException
 	 */
 	public static void segmentConvert(String inputPath, String outputPath) throws IOException {
-
-		File inFile = new File(inputPath);
-		FileInputStream fis = new FileInputStream(inFile);
-		FileOutputStream fos = new FileOutputStream(outputPath);
-		byte[] buffer = new byte[segmentSize];
-		int len;
-		int counter = 0;
-		byte[] validBuffer;
-		byte[] combined;
-		byte[] left0 = null;
-		byte[] left1 = null;
-		byte[] converted;
-		while((len=fis.read(buffer)) == segmentSize) {
-			//to check the value of len
-//			System.out.println("len = " + len);
-			int i = segmentSize - 1;
-			while (buffer[i] > 127 || buffer[i]<0) {
-				i--;
-				if (i==0) {
-					//报错
-					System.err.println("File Segmentation Failed. Failed to find an "
-					+ "ASCII character(0-127) in a segment size of "+
-					segmentSize +" bytes\n"+"Plese adjust the segmentation size.");
-					break;
-				}
-			}
-			validBuffer = Arrays.copyOf(buffer, i+1);
-			if (counter%2==0){
-				left0 = Arrays.copyOfRange(buffer,i+1,segmentSize);
-				combined = concat(left1,validBuffer);
-				left1 = null;
-			} else {
-				left1 = Arrays.copyOfRange(buffer,i+1,segmentSize);
-				combined = concat(left0,validBuffer);
-				left0 = null;
-			}
-			counter++;
-			converted = realConvert2(combined,combined.length);
-			fos.write(converted);
-		}
-		//for the end part of the document
-		//can't use len=fis.read(buffer) since buffer has been read into in the while loop for the last time.
-		if(len < segmentSize) {
-			//to check the value of len
-			System.out.println("len = " + len);
-			if (len>0) {
-				validBuffer = Arrays.copyOf(buffer, len);
-			} else {
-				//in case the file length is the multiple of 8
-				//in this case, the length of last segment will be 0
-				//only need to write what's in the left0 or left1
-				validBuffer = null;
-			}
-			if (counter%2==0){
-				//there is nothing left when dealing with the last part of the document
-				//therefore no need to give value to left0 or left1
-				combined = concat(left1,validBuffer);
-			} else {
-				combined = concat(left0,validBuffer);
-			}
-			converted = realConvert2(combined,combined.length);
-			System.out.println(new String(converted,Charset.forName("UTF-8")));
-			fos.write(converted);
+		try (FileChannel in = FileChannel.open(Paths.get(inputPath), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(Paths.get(outputPath), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			new SegmentPipeline(KERNEL, segmentSize).convert(in, out);
 		}
-		fos.close();
-		fis.close();
+	}
+	/**
+	 * 使用FileChannel和内存映射文件，按MappedConvert.DEFAULT_WINDOW_SIZE大小的窗口进行分块转换，
+	 * 不需要把输入复制到byte[]中。详见MappedConvert。
+	 * @param inputPath		&nbsp;输入文件路径 	&nbsp; Input File Path 
+	 * @param outputPath	&nbsp;输出文件路径	&nbsp; Output File Path 
+	 * @throws IOException
+	 */
+	public static void mappedConvert(String inputPath, String outputPath) throws IOException {
+		MappedConvert.convert(inputPath, outputPath, KERNEL, MappedConvert.DEFAULT_WINDOW_SIZE);
 	}
 	public static byte[] concat(byte[] a, byte[] b) {
 		//for combining two arrays
@@ -183,8 +145,9 @@ public class UTF8ToANSI {
 	 * 由于realConvert方法使用的CharsetEncoder Engine转换方法比较繁琐，不能直接对byte[]操作，
 	 * 要先把byte[]转换为String再转换为char[]再转换为CharBuffer，而且使用CharsetEncoder转UTF-8时
 	 * 还有bug，会导致结果中最后产生大量null字符，所以改用realConvert2()。
-	 * realConvert2直接使用String类的构造方法String(byte[] bytes, String charsetName)
-	 * 和getBytes(String charsetName)方法，更加简洁明了。
+	 * realConvert2原来直接使用String类的构造方法String(byte[] bytes, String charsetName)
+	 * 和getBytes(String charsetName)方法，更加简洁明了，但每块数据要转换四次。
+	 * 现在改用预先构建好查找表的TranscodeKernel，一次遍历完成转换，结果与原来的四步转换相同。
 	 * @param in	&nbsp;输入字节数组
 	 * @param len	&nbsp;该字节数组的有效长度。用以处理 
 	 * java.io.FileInputStream.read(byte[] b)方法产生的byte[]数组中包含部分无效元素的情况。
@@ -193,12 +156,7 @@ public class UTF8ToANSI {
 	 * @throws UnsupportedEncodingException
 	 */
 	public static byte[] realConvert2 (byte[] in, int len) throws UnsupportedEncodingException {
-		byte[] valid = Arrays.copyOf(in, len);
-		String step1 = new String(valid,"UTF-8");
-		byte[] step2 = step1.getBytes("ISO-8859-1");
-		String step3 = new String(step2,"GBK");
-		byte[] step4 = step3.getBytes("UTF-8");
-		return step4;
+		return KERNEL.convert(in, 0, len);
 	}
 	
 	public static byte[] realConvert (byte[] in, int len) throws CharacterCodingException, UnsupportedEncodingException {
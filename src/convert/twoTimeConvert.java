@@ -1,10 +1,20 @@
 package convert;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 /**<p>
  * 本段代码用于恢复中文乱码，主要针对被错误转换后导致无法通过直接选择文件内码进行恢复的乱码。
@@ -22,14 +32,43 @@ import java.util.Arrays;
  * outputEncoding：最后输出文件的编码。以前文的例子为例，该参数可填写：GBK、UTF-8、UTF-16等支持中文字符的编码。默认值为UTF-8。</p><p>
  * 该程序所支持的编码为所有Java所支持的编码类型，请参考：http://docs.oracle.com/javase/8/docs/technotes/guides/intl/encoding.doc.html</p><p>
  * 我在GitHub上提供了测试用乱码文件，可以进行测试。https://github.com/kind03/Job/blob/master/test_resources/MessyCodeGBK-Windows1252-UTF.txt</p>
+ * <p>本类的配置保存在静态变量中，只适合从命令行运行。在其他程序中使用，或者同时使用多个编码链时，请使用MojibakeConverter。</p>
  * @author 何晶   He, Jing
  * @version 1.3 &nbsp; 2017/11/9
  *
  */
 public class twoTimeConvert {
-	//由于转换大文件需要分块处理，segmentSize为分块大小，默认为4096字节，可以自行改动。
+	//由于转换大文件需要分块处理，segmentSize为分块大小的默认值，即4096字节。
 	//关于文件分块的介绍请见segmentConvert()方法。
 	public static final int segmentSize = 4096;
+	//运行时通过--window=参数指定的分块(窗口)大小，0表示使用默认值：
+	//segmentConvert()为segmentSize，--nio模式为MappedConvert.DEFAULT_WINDOW_SIZE
+	private static int windowSize = 0;
+	//--nio：使用FileChannel和内存映射文件进行转换，见MappedConvert
+	private static boolean nio = false;
+	//--parallel：使用多个线程同时转换，见ParallelConvert。threads和inFlight为0时使用默认值
+	private static boolean parallel = false;
+	private static int threads = 0;
+	private static int inFlight = 0;
+	//--detect：转换前先用ChainDetector自动判断middleCode和originCode
+	private static boolean detect = false;
+	//--incremental和--follow：只转换新增的数据，见IncrementalConvert。interval为0时使用默认值
+	private static boolean incremental = false;
+	private static boolean follow = false;
+	private static boolean flush = false;
+	private static long interval = 0;
+	//--selective：只转换看起来像乱码的部分，见SelectiveTranscoder
+	private static boolean selective = false;
+	//--fanout=ENCODING:path：除outputFilePath以外的其他输出文件及其编码，见FanOutConvert
+	private static List<String> fanOutPaths = new ArrayList<String>();
+	private static List<String> fanOutCodes = new ArrayList<String>();
+	//--tsv和--csv：按列转换表格，见RecordConvert。columns为null时修复所有列，cacheSize为0时使用默认值
+	private static boolean tsv = false;
+	private static boolean csv = false;
+	private static BitSet columns = null;
+	private static int cacheSize = 0;
+	//--report：结束时输出ConvertMetrics的汇总，report为输出路径，为""时输出到标准输出，为null时不输出
+	private static String report = null;
 	private static String inputCode = "UTF-8";
 	//ISO-8859-1 or Windows-1252 are both fine
 	private static String middleCode = "Windows-1252";
@@ -37,8 +76,40 @@ public class twoTimeConvert {
 	private static String outputCode = "UTF-8";
 	private static String inputPath;
 	private static String outputPath;
+	//按上面四个编码预先构建的转码核心，见kernel()方法
+	private static TranscodeKernel kernel;
 	
+	/**
+	 * 除了上面的2-6个参数以外，还可以在任意位置加入以下选项：
+	 * <p>--nio：使用FileChannel和内存映射文件进行转换，适用于很大的文件。</p>
+	 * <p>--parallel：使用多个线程同时转换同一个文件，同样使用内存映射文件。</p>
+	 * <p>--threads=N：--parallel模式的线程数，默认为CPU核数。</p>
+	 * <p>--inflight=N：--parallel模式同时处理的最大块数，用于限制内存占用，默认为线程数+2；--fanout模式默认为4。</p>
+	 * <p>--window=N：分块(窗口)大小，单位为字节。默认为4096，--nio模式默认为8MB，--parallel模式默认为4MB，--fanout模式为每块的字符数，默认为65536。</p>
+	 * <p>--detect：读取文件中的几段样本，自动判断middleEncoding和originEncoding，
+	 * 参数中的middleEncoding和originEncoding会被忽略。</p>
+	 * <p>--incremental：只转换上次运行之后新增的数据并追加到输出文件，进度保存在outputFilePath.checkpoint中。</p>
+	 * <p>--follow：与--incremental相同，但不退出，每隔一段时间转换一次新增的数据。</p>
+	 * <p>--interval=N：--follow模式的间隔，单位为毫秒，默认为1000。</p>
+	 * <p>--flush：--incremental模式下把文件末尾不以ASCII字符结尾的部分也转换，例如日志文件不再增长时。</p>
+	 * <p>--selective：只转换文件中看起来像乱码的部分，本来正确的中文和其他字符原样输出，
+	 * 适用于正确的文本和乱码混在一起的文件。middleEncoding必须是单字节编码。</p>
+	 * <p>--fanout=ENCODING:path：同时输出另一个文件，例如--fanout=GBK:out-gbk.txt，可以使用多次。
+	 * 输入只读取和修复一次，所有输出文件同时写入。</p>
+	 * <p>--tsv或--csv：按Tab或逗号分隔的表格逐行转换，只修复--columns指定的列，
+	 * 纯ASCII的字段(数字等)原样复制，重复的字段使用缓存的转换结果。inputEncoding必须是UTF-8或单字节编码。</p>
+	 * <p>--columns=N,N-M：--tsv/--csv模式需要修复的列，从1开始，例如--columns=2,3,5-7，默认为所有列。</p>
+	 * <p>--cache=N：--tsv/--csv模式缓存的字段数，默认为16384。</p>
+	 * <p>inputFilePath或outputFilePath以.gz结尾时按gzip格式边解压/压缩边转换；都以.zip结尾时转换zip中的每个文件，
+	 * 多个文件同时转换(--threads、--inflight同样适用)，按原来的结构写入新的zip文件。见CompressedConvert。</p>
+	 * <p>--report或--report=path：结束时输出一行JSON格式的统计数据(见ConvertMetrics)，默认输出到标准输出。</p>
+	 * <p>--jmx：把统计数据注册为JMX MBean(convert:type=ConvertMetrics)，适用于--follow等长时间运行的模式。</p>
+	 * <p>--nio、--parallel、--incremental(--follow)、--selective、--fanout、--tsv(--csv)是不同的转换方式，
+	 * 只能使用一种；转换.gz或.zip文件时都不能使用。</p>
+	 */
 	public static void main(String[] args) throws IOException {
+		args = parseOptions(args);
+		if (args == null) return;
 		if (args.length >= 2) {
 			inputPath = args[0];
 			outputPath = args[1];
@@ -55,138 +126,450 @@ public class twoTimeConvert {
 			+ "Arguments should be divided by spaces.");
 			return;
 		}
-		segmentConvert();
+		if (detect && !detectChain()) return;
+		long start = System.nanoTime();
+		if (CompressedConvert.isZip(inputPath) || CompressedConvert.isZip(outputPath)) {
+			zipConvert();
+		} else if (CompressedConvert.isGzip(inputPath) || CompressedConvert.isGzip(outputPath)) {
+			gzipConvert();
+		} else if (follow) {
+			followConvert();
+		} else if (incremental) {
+			incrementalConvert();
+		} else if (!fanOutPaths.isEmpty()) {
+			fanOutConvert();
+		} else if (tsv || csv) {
+			recordConvert();
+		} else if (parallel) {
+			parallelConvert();
+		} else if (nio) {
+			mappedConvert();
+		} else if (selective) {
+			selectiveConvert();
+		} else {
+			segmentConvert();
+		}
+		if (report != null) {
+			writeReport(ConvertMetrics.global().toJson(System.nanoTime() - start));
+		}
 	}
+	
 	/**
-	 * 	<p>由于Java的CharsetEncoder Engine每次处理的字符数量有限，String类的容量也有限，
-		所以对于大文件，必须要拆分处理。</p><p>
-		但是由于UTF-8格式中每个字符的长度可变，且经过两次转换，
-		原来的GBK编码已经面目全非，不太好区分每个汉字的开始和结束位置。
-		所以干脆查找UTF-8中的标准ASCII的字符，即单个字节十进制值为0-127范围内的字符，
-		以ASCII字符后的位置来对文件进行分块(Segementation)，再逐块转换。
-		但如果在默认的分块大小(Segment Size)一个ASCII字符都找不到的话，就会导致转换失败。</p><p>
-		UTF-16也按照此原理进行转换。但由于UTF-16有大端(BE)和小端(LE)之分，
-		文件头部有时还有BOM，所以增加了BOM信息读取并通过BOM来判断是BE还是LE。</p><p>
-		对于其他编码，只要和ASCII码兼容，都适用于对UTF-8进行分割的方法。</p>
-	 * @throws IOException
+	 * 把统计数据的汇总写入--report指定的文件或标准输出。
 	 */
-	public static void segmentConvert() throws IOException {
-		FileInputStream fis = new FileInputStream(inputPath);
-		FileOutputStream fos = new FileOutputStream(outputPath);
-		byte[] buffer = new byte[segmentSize];
-		int len;
-		int counter = 0;
-		byte[] validBuffer;
-		byte[] combined;
-		byte[] left0 = null;
-		byte[] left1 = null;
-		byte[] converted;
-		//文件头部BOM信息读取
-		if ("UTF-16".equals(inputCode) || "UTF-16LE".equals(inputCode) ||"UTF-16BE".equals(inputCode)) {
-			byte[] head = new byte[2];
-			fis.read(head,0,2);
-			if (head[0]==-1 && head[1]==-2) {
-				inputCode = "UTF-16LE";
-				}
-			else if (head[0]==-2 && head[1]==-1) { 
-				inputCode = "UTF-16BE";
+	private static void writeReport(String json) throws IOException {
+		if (report.isEmpty()) {
+			System.out.println(json);
+		} else {
+			Files.write(Paths.get(report), (json + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+	
+	/**
+	 * 读取以"--"开头的选项，返回剩下的参数。选项有误时打印错误信息并返回null。
+	 */
+	private static String[] parseOptions(String[] args) {
+		List<String> rest = new ArrayList<String>();
+		for (String arg : args) {
+			if (!arg.startsWith("--")) {
+				rest.add(arg);
+			} else if ("--nio".equals(arg)) {
+				nio = true;
+			} else if ("--detect".equals(arg)) {
+				detect = true;
+			} else if ("--incremental".equals(arg)) {
+				incremental = true;
+			} else if ("--follow".equals(arg)) {
+				follow = true;
+			} else if ("--flush".equals(arg)) {
+				flush = true;
+			} else if ("--selective".equals(arg)) {
+				selective = true;
+			} else if (arg.startsWith("--fanout=")) {
+				//encoding names never contain ':', paths may (C:\...)
+				int colon = arg.indexOf(':');
+				if (colon < 0 || colon == "--fanout=".length() || colon == arg.length() - 1) {
+					System.err.println("Invalid option: " + arg + ". The value should be ENCODING:path.");
+					return null;
 				}
-			else {
-				left0 = head;
-				counter++;
+				fanOutCodes.add(arg.substring("--fanout=".length(), colon));
+				fanOutPaths.add(arg.substring(colon + 1));
+			} else if ("--tsv".equals(arg)) {
+				tsv = true;
+			} else if ("--csv".equals(arg)) {
+				csv = true;
+			} else if (arg.startsWith("--columns=")) {
+				columns = parseColumns(arg);
+				if (columns == null) return null;
+			} else if (arg.startsWith("--cache=")) {
+				cacheSize = parsePositive(arg, 1);
+				if (cacheSize < 0) return null;
+			} else if ("--report".equals(arg)) {
+				report = "";
+			} else if (arg.startsWith("--report=")) {
+				report = arg.substring("--report=".length());
+			} else if ("--jmx".equals(arg)) {
+				ConvertMetrics.registerMBean();
+			} else if (arg.startsWith("--interval=")) {
+				interval = parsePositive(arg, 1);
+				if (interval < 0) return null;
+			} else if ("--parallel".equals(arg)) {
+				parallel = true;
+			} else if (arg.startsWith("--window=")) {
+				windowSize = parsePositive(arg, 2);
+				if (windowSize < 0) return null;
+			} else if (arg.startsWith("--threads=")) {
+				threads = parsePositive(arg, 1);
+				if (threads < 0) return null;
+			} else if (arg.startsWith("--inflight=")) {
+				inFlight = parsePositive(arg, 1);
+				if (inFlight < 0) return null;
+			} else {
+				System.err.println("Unknown option: " + arg + ". Supported options are: "
+				+ "--nio, --parallel, --detect, --selective, --fanout=ENCODING:path, --tsv, --csv, --columns=N,N-M, --cache=N, --incremental, --follow, --flush, --interval=N, --report[=path], --jmx, --threads=N, --inflight=N, --window=N.");
+				return null;
 			}
 		}
-		while((len=fis.read(buffer)) == segmentSize) {
-			//to check the value of len
-//			System.out.println("len = " + len);
-			int i = segmentSize - 1;
-			if ("UTF-16LE".equals(inputCode)) {
-				while (i>-1) {
-					if ((buffer[i-1] >= 0 && buffer[i-1] <= 127) && buffer[i] ==0) {
-						break;}
-					i--;
-					if (i==0) {
-						//报错
-						System.err.println("File Segmentation Failed. Failed to find an "
-						+ "ASCII character(0x0000-0x0009) in a segment size of "+
-						segmentSize +" bytes\n"+"Plese adjust the segmentation size.");
-						break;
-					}
-				}
-//				i = segmentSpliter(buffer,"(buffer[i-1] >= 0 || buffer[i-1] <= 127) "
-//						+ "&& (buffer[i]==0)");
-			}else if ("UTF-16BE".equals(inputCode)) {
-				while (i>-1) {
-					if ((buffer[i] >= 0 && buffer[i] <= 127) && buffer[i-1] ==0) {
-						break;}
-					i--;
-					if (i==0) {
-						//报错
-						System.err.println("File Segmentation Failed. Failed to find an "
-						+ "ASCII character(0x0000-0x0009) in a segment size of "+
-						segmentSize +" bytes\n"+"Plese adjust the segmentation size.");
-						break;
-					}
-				}
-			}else {
-//				the following segmentation method is not suitable for UTF-16 or UTF-32 
-//				since they are not compatible with ASCII code 
-				while (i>-1) {
-					if (buffer[i] <= 127 && buffer[i] >= 0) {
-						break;}
-					i--;
-					if (i==0) {
-						//报错
-						System.err.println("File Segmentation Failed. Failed to find an "
-						+ "ASCII character(0-127) in a segment size of "+
-						segmentSize +" bytes\n"+"Plese adjust the segmentation size.");
-						break;
-					}
-				}
+		if (!checkModes(rest)) return null;
+		return rest.toArray(new String[rest.size()]);
+	}
+	
+	/**
+	 * 检查是否同时使用了几种转换方式，例如--selective和--parallel，否则只有其中一种会生效。
+	 * .gz和.zip文件按流转换(见CompressedConvert)，也不能与其他转换方式一起使用。有冲突时打印错误信息并返回false。
+	 * @param rest	&nbsp;选项以外的参数，前两个为输入和输出路径
+	 */
+	private static boolean checkModes(List<String> rest) {
+		List<String> modes = new ArrayList<String>();
+		if (nio) modes.add("--nio");
+		if (parallel) modes.add("--parallel");
+		if (incremental || follow) modes.add(follow ? "--follow" : "--incremental");
+		if (selective) modes.add("--selective");
+		if (!fanOutPaths.isEmpty()) modes.add("--fanout");
+		if (tsv && csv) {
+			System.err.println("Invalid option: --csv. It cannot be used together with --tsv.");
+			return false;
+		}
+		if (tsv || csv) {
+			modes.add(tsv ? "--tsv" : "--csv");
+		} else if (columns != null || cacheSize > 0) {
+			System.err.println("Invalid option: " + (columns != null ? "--columns" : "--cache")
+					+ ". It can only be used with --tsv or --csv.");
+			return false;
+		}
+		for (int i = 0; i < Math.min(rest.size(), 2) && !modes.isEmpty(); i++) {
+			String path = rest.get(i);
+			if (CompressedConvert.isGzip(path) || CompressedConvert.isZip(path)) {
+				System.err.println("Invalid option: " + modes.get(0) + ". It cannot be used with the compressed file "
+						+ path + ".");
+				return false;
 			}
-			validBuffer = Arrays.copyOf(buffer, i+1);
-			if (counter%2==0){
-				left0 = Arrays.copyOfRange(buffer,i+1,segmentSize);
-				combined = concat(left1,validBuffer);
-				left1 = null;
-			} else {
-				left1 = Arrays.copyOfRange(buffer,i+1,segmentSize);
-				combined = concat(left0,validBuffer);
-				left0 = null;
+		}
+		if (modes.size() > 1) {
+			System.err.println("Invalid option: " + modes.get(1) + ". It cannot be used together with "
+					+ modes.get(0) + ".");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * 读取"--name=N"形式的选项的值。值不是整数或小于min时打印错误信息并返回-1。
+	 */
+	private static int parsePositive(String arg, int min) {
+		int value;
+		try {
+			value = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+		} catch (NumberFormatException e) {
+			value = -1;
+		}
+		if (value < min) {
+			System.err.println("Invalid option: " + arg + ". The value should be an integer of at least " + min + ".");
+			return -1;
+		}
+		return value;
+	}
+	
+	/**
+	 * 读取"--columns=2,3,5-7"形式的选项，列号从1开始，返回从0开始的列。有误时打印错误信息并返回null。
+	 */
+	private static BitSet parseColumns(String arg) {
+		BitSet set = new BitSet();
+		try {
+			for (String part : arg.substring("--columns=".length()).split(",")) {
+				int dash = part.indexOf('-');
+				int first = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+				int last = dash < 0 ? first : Integer.parseInt(part.substring(dash + 1));
+				if (first < 1 || last < first) throw new NumberFormatException(part);
+				set.set(first - 1, last);
 			}
-			counter++;
-			converted = realConvert2(combined,combined.length);
-			fos.write(converted);
-		}
-		//for the end part of the document
-		//can't use len=fis.read(buffer) since buffer has already got the bytes 
-		//of the last part in the while loop above
-		if(len < segmentSize) {
-			//to check the value of len
-			System.out.println("last part len = " + len);
-			if (len>0) {
-				validBuffer = Arrays.copyOf(buffer, len);
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid option: " + arg + ". The value should be column numbers or ranges "
+					+ "starting from 1, e.g. --columns=2,3,5-7.");
+			return null;
+		}
+		return set;
+	}
+	
+	/**
+	 * 使用ChainDetector判断编码链，并设置middleCode和originCode。
+	 * @return	&nbsp;是否应该继续转换。没有任何编码链能改善文本或编码不受支持时返回false
+	 * @throws IOException
+	 */
+	public static boolean detectChain() throws IOException {
+		ChainDetector.Result r;
+		try {
+			if (CompressedConvert.isGzip(inputPath) || CompressedConvert.isZip(inputPath)) {
+				try (InputStream in = CompressedConvert.open(inputPath)) {
+					r = ChainDetector.detect(in, inputCode);
+				}
 			} else {
-				//in case the file length is the multiple of segmentSize
-				//in this case, the length of last segment will be 0
-				//only need to write what's in the left0 or left1
-				validBuffer = null;
+				r = ChainDetector.detect(inputPath, inputCode);
 			}
-			if (counter%2==0){
-				//there is nothing left when dealing with the last part of the document
-				//therefore no need to give value to left0 or left1
-				combined = concat(left1,validBuffer);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unsupported Encoding. Please check Java 8 "
+			+ "supported encodings at: http://docs.oracle.com/javase/8/docs/technotes/guides/intl/encoding.doc.html");
+			e.printStackTrace();
+			return false;
+		}
+		System.out.println("Detected chain: " + r);
+		if (!r.improves()) {
+			System.err.println("No candidate chain improves the text. "
+			+ "The file does not look like mojibake, conversion skipped.");
+			return false;
+		}
+		middleCode = r.middleCode;
+		originCode = r.originCode;
+		return true;
+	}
+	
+	/**
+	 * 只转换上次运行之后新增的数据，见IncrementalConvert。
+	 * @throws IOException
+	 */
+	public static void incrementalConvert() throws IOException {
+		TranscodeKernel k = kernel();
+		if (k == null) return;
+		long n = IncrementalConvert.convert(inputPath, outputPath, k,
+				windowSize > 0 ? windowSize : IncrementalConvert.DEFAULT_WINDOW_SIZE, flush);
+		System.out.println("Converted " + n + " new bytes.");
+	}
+	
+	/**
+	 * 不断转换新增的数据，直到进程被终止，见IncrementalConvert.follow()。
+	 * @throws IOException
+	 */
+	public static void followConvert() throws IOException {
+		TranscodeKernel k = kernel();
+		if (k == null) return;
+		try {
+			IncrementalConvert.follow(inputPath, outputPath, k,
+					windowSize > 0 ? windowSize : IncrementalConvert.DEFAULT_WINDOW_SIZE,
+					interval > 0 ? interval : IncrementalConvert.DEFAULT_INTERVAL);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * 转换gzip文件，见CompressedConvert。
+	 * @throws IOException
+	 */
+	public static void gzipConvert() throws IOException {
+		if (!charsetsSupported()) return;
+		CompressedConvert.convertGzip(inputPath, outputPath, inputCode, middleCode, originCode, outputCode);
+	}
+	
+	/**
+	 * 转换zip文件中的所有文件，见CompressedConvert。输入和输出都必须是zip文件。
+	 * @throws IOException
+	 */
+	public static void zipConvert() throws IOException {
+		if (!CompressedConvert.isZip(inputPath) || !CompressedConvert.isZip(outputPath)) {
+			System.err.println("Both inputFilePath and outputFilePath should be .zip files.");
+			return;
+		}
+		if (!charsetsSupported()) return;
+		int n = threads > 0 ? threads : ParallelConvert.defaultThreads();
+		CompressedConvert.convertZip(inputPath, outputPath, inputCode, middleCode, originCode, outputCode,
+				n, inFlight > 0 ? inFlight : ParallelConvert.defaultInFlight(n),
+				CompressedConvert.DEFAULT_MAX_BUFFERED_ENTRY);
+	}
+	
+	/**
+	 * 检查四个编码是否都受支持，不支持时打印错误信息。用于在写入输出文件之前尽早发现错误。
+	 */
+	private static boolean charsetsSupported() {
+		try {
+			Charset.forName(inputCode);
+			Charset.forName(middleCode);
+			Charset.forName(originCode);
+			Charset.forName(outputCode);
+			return true;
+		} catch (UnsupportedCharsetException | IllegalCharsetNameException e) {
+			System.err.println("Unsupported Encoding. Please check Java 8 "
+			+ "supported encodings at: http://docs.oracle.com/javase/8/docs/technotes/guides/intl/encoding.doc.html");
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * 同时输出outputFilePath和所有--fanout指定的文件，见FanOutConvert。
+	 * @throws IOException
+	 */
+	public static void fanOutConvert() throws IOException {
+		List<String> paths = new ArrayList<String>();
+		List<String> codes = new ArrayList<String>();
+		paths.add(outputPath);
+		codes.add(outputCode);
+		paths.addAll(fanOutPaths);
+		codes.addAll(fanOutCodes);
+		try {
+			FanOutConvert.convert(inputPath, inputCode, middleCode, originCode, paths, codes,
+					windowSize > 0 ? Math.max(windowSize, 16) : FanOutConvert.DEFAULT_CHUNK_SIZE,
+					inFlight > 0 ? inFlight : FanOutConvert.DEFAULT_IN_FLIGHT);
+		} catch (UnsupportedCharsetException | IllegalCharsetNameException e) {
+			System.err.println("Unsupported Encoding. Please check Java 8 "
+			+ "supported encodings at: http://docs.oracle.com/javase/8/docs/technotes/guides/intl/encoding.doc.html");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * 按列转换TSV/CSV表格，见RecordConvert。
+	 * @throws IOException
+	 */
+	public static void recordConvert() throws IOException {
+		TranscodeKernel k = kernel();
+		if (k == null) return;
+		RecordConvert.FieldCache cache = new RecordConvert.FieldCache(
+				cacheSize > 0 ? cacheSize : RecordConvert.DEFAULT_CACHE_SIZE);
+		try {
+			RecordConvert.convert(inputPath, outputPath, k, csv ? (byte) ',' : (byte) '\t', csv, columns, cache);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+		System.out.println("Cache hits: " + cache.getHits() + ", misses: " + cache.getMisses() + ".");
+	}
+	
+	/**
+	 * 使用多个线程同时转换，见ParallelConvert。
+	 * @throws IOException
+	 */
+	public static void parallelConvert() throws IOException {
+		TranscodeKernel k = kernel();
+		if (k == null) return;
+		int n = threads > 0 ? threads : ParallelConvert.defaultThreads();
+		ParallelConvert.convert(inputPath, outputPath, k,
+				windowSize > 0 ? windowSize : ParallelConvert.DEFAULT_WINDOW_SIZE,
+				n, inFlight > 0 ? inFlight : ParallelConvert.defaultInFlight(n));
+	}
+	
+	/**
+	 * 使用FileChannel和内存映射文件进行转换，见MappedConvert。
+	 * @throws IOException
+	 */
+	public static void mappedConvert() throws IOException {
+		TranscodeKernel k = kernel();
+		if (k == null) return;
+		MappedConvert.convert(inputPath, outputPath, k,
+				windowSize > 0 ? windowSize : MappedConvert.DEFAULT_WINDOW_SIZE);
+	}
+	/**
+	 * 	<p>由于Java的CharsetEncoder Engine每次处理的字符数量有限，String类的容量也有限，
+		所以对于大文件，必须要拆分处理。</p><p>
+		原来的做法是查找UTF-8中的标准ASCII的字符，即单个字节十进制值为0-127范围内的字符，
+		以ASCII字符后的位置来对文件进行分块(Segementation)，再逐块转换。
+		但如果在默认的分块大小(Segment Size)一个ASCII字符都找不到的话，就会导致转换失败，
+		并且每块剩下的部分都要复制到新的数组中与下一块拼接。</p><p>
+		现在改为使用StreamingTranscoder：四步转换各使用一个可重复使用的CharsetDecoder/CharsetEncoder，
+		被截断在分块末尾的不完整字符由它们保留到下一块继续转换，所以不再需要查找ASCII字符，
+		连续的中文或UTF-16文本无论多长都可以正确转换。输入和输出缓冲区在整个文件中重复使用。</p><p>
+		UTF-16文件头部有时还有BOM，所以仍然读取BOM信息并通过BOM来判断是BE还是LE。</p>
+	 * @throws IOException
+	 */
+	public static void segmentConvert() throws IOException {
+		convertFile(false);
+	}
+	
+	/**
+	 * 只转换看起来像乱码的部分，见SelectiveTranscoder。读取方式与segmentConvert()相同。
+	 * @throws IOException
+	 */
+	public static void selectiveConvert() throws IOException {
+		convertFile(true);
+	}
+	
+	private static void convertFile(boolean selective) throws IOException {
+		//the buffer must hold at least one incomplete character carried over from the last read
+		int size = Math.max(windowSize > 0 ? windowSize : segmentSize, 16);
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		try (FileChannel in = FileChannel.open(Paths.get(inputPath), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(Paths.get(outputPath), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			//文件头部BOM信息读取
+			if ("UTF-16".equals(inputCode) || "UTF-16LE".equals(inputCode) ||"UTF-16BE".equals(inputCode)) {
+				buffer.limit(2);
+				while (buffer.hasRemaining() && in.read(buffer) != -1);
+				if (buffer.position() == 2 && buffer.get(0)==-1 && buffer.get(1)==-2) {
+					inputCode = "UTF-16LE";
+					buffer.clear();
+				} else if (buffer.position() == 2 && buffer.get(0)==-2 && buffer.get(1)==-1) {
+					inputCode = "UTF-16BE";
+					buffer.clear();
+				} else {
+					//no BOM, the head is part of the text; the transcoders start from an empty buffer
+					in.position(0);
+					buffer.clear();
+				}
+			}
+			if (selective) {
+				SelectiveTranscoder transcoder = selectiveTranscoder();
+				if (transcoder == null) return;
+				transcoder.convert(in, out, buffer);
+				System.out.println("Repaired " + transcoder.getRepairedRuns() + " runs, kept "
+						+ transcoder.getKeptRuns() + " runs unchanged.");
 			} else {
-				combined = concat(left0,validBuffer);
+				StreamingTranscoder transcoder = transcoder();
+				if (transcoder == null) return;
+				transcoder.convert(in, out, buffer);
 			}
-			converted = realConvert2(combined,combined.length);
-			fos.write(converted);
-//			for test purpose
-			System.out.println("================= last segment check =====================");
-			System.out.println(new String(converted));
 		}
-		fos.close();
-		fis.close();
+	}
+	
+	/**
+	 * 按当前的编码链创建选择性修复的转码器。编码不受支持或middleCode不是单字节编码时打印错误信息并返回null。
+	 */
+	private static SelectiveTranscoder selectiveTranscoder() {
+		try {
+			return new SelectiveTranscoder(Charset.forName(inputCode), Charset.forName(middleCode),
+					Charset.forName(originCode), Charset.forName(outputCode), SelectiveTranscoder.DEFAULT_BUFFER_SIZE);
+		} catch (UnsupportedCharsetException | IllegalCharsetNameException e) {
+			System.err.println("Unsupported Encoding. Please check Java 8 "
+			+ "supported encodings at: http://docs.oracle.com/javase/8/docs/technotes/guides/intl/encoding.doc.html");
+			e.printStackTrace();
+			return null;
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * 按当前的编码链创建流式转码器。编码不受支持时打印错误信息并返回null。
+	 */
+	private static StreamingTranscoder transcoder() {
+		try {
+			return new StreamingTranscoder(inputCode, middleCode, originCode, outputCode);
+		} catch (IllegalArgumentException e) {
+			//UnsupportedCharsetException or IllegalCharsetNameException
+			System.err.println("Unsupported Encoding. Please check Java 8 "
+			+ "supported encodings at: http://docs.oracle.com/javase/8/docs/technotes/guides/intl/encoding.doc.html");
+			e.printStackTrace();
+			return null;
+		}
 	}
 	
 	public static byte[] concat(byte[] a, byte[] b) {
@@ -202,31 +585,39 @@ public class twoTimeConvert {
 	}
 	
 	/**
-	 * 由于realConvert方法使用的CharsetEncoder Engine转换方法比较繁琐，不能直接对byte[]操作，
-	 * 要先把byte[]转换为String再转换为char[]再转换为CharBuffer，而且使用CharsetEncoder转UTF-8时
-	 * 还有bug，会导致结果中最后产生大量null字符，所以改用realConvert2()。
-	 * realConvert2直接使用String类的构造方法String(byte[] bytes, String charsetName)
-	 * 和getBytes(String charsetName)方法，更加简洁明了。
+	 * 取得与当前inputCode、middleCode、originCode、outputCode对应的转码核心。
+	 * 编码参数改变后会重新构建。编码不受支持时打印错误信息并返回null。
+	 */
+	private static TranscodeKernel kernel() {
+		TranscodeKernel k = kernel;
+		if (k == null || !k.isChain(inputCode, middleCode, originCode, outputCode)) {
+			try {
+				k = TranscodeKernel.forChain(inputCode, middleCode, originCode, outputCode);
+			} catch (IllegalArgumentException e) {
+				//UnsupportedCharsetException or IllegalCharsetNameException
+				System.err.println("Unsupported Encoding. Please check Java 8 "
+				+ "supported encodings at: http://docs.oracle.com/javase/8/docs/technotes/guides/intl/encoding.doc.html");
+				e.printStackTrace();
+				return null;
+			}
+			kernel = k;
+		}
+		return k;
+	}
+	
+	/**
+	 * 原来的realConvert2()对每一块数据依次执行new String(valid,inputCode)、getBytes(middleCode)、
+	 * new String(step2,originCode)、getBytes(outputCode)四步转换。现在改为使用预先构建好的转码核心
+	 * TranscodeKernel，一次遍历查表完成转换，查找表无法覆盖的数据仍使用上述四步转换，结果完全相同。
 	 * @param in	&nbsp;输入字节数组
 	 * @param len	&nbsp;该字节数组的有效长度。用以处理 
 	 * java.io.FileInputStream.read(byte[] b)方法产生的byte[]数组中包含部分无效元素的情况。
 	 * 如果in数组中所有元素都有效，该变量可直接填入in.length
-	 * @return
-	 * @throws UnsupportedEncodingException
+	 * @return	&nbsp;转换后的字节数组。编码不受支持时返回未经转换的输入。
 	 */
 	public static byte[] realConvert2 (byte[] in, int len) {
-		byte[] valid = Arrays.copyOf(in, len);
-		try {
-			String step1 = new String(valid,inputCode);
-			byte[] step2 = step1.getBytes(middleCode);
-			String step3 = new String(step2,originCode);
-			byte[] step4 = step3.getBytes(outputCode);
-			return step4;
-		} catch (UnsupportedEncodingException e) {
-			System.err.println("Unsupported Encoding. Please check Java 8 "
-			+ "supported encodings at: http://docs.oracle.com/javase/8/docs/technotes/guides/intl/encoding.doc.html");
-			e.printStackTrace();
-		}
-		return valid;
+		TranscodeKernel k = kernel();
+		if (k == null) return Arrays.copyOf(in, len);
+		return k.convert(in, 0, len);
 	}
-}
\ No newline at end of file
+}
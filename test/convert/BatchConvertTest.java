@@ -0,0 +1,73 @@
+package convert;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**<p>
+ * BatchConvert的测试：输出路径超出targetDir、重复的输出路径，以及与清单文件相同的输出路径。</p>
+ * @author 何晶   He, Jing
+ */
+public class BatchConvertTest {
+	private static final TranscodeKernel KERNEL = TranscodeKernel.forChain("UTF-8", "ISO-8859-1", "GBK", "UTF-8");
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test
+	public void rejectsListEntriesOutsideTarget() throws IOException {
+		Path target = temp.newFolder("target").toPath();
+		Path list = temp.getRoot().toPath().resolve("files.txt");
+		Files.write(list, Arrays.asList("../x.txt", "a/../../y.txt"), StandardCharsets.UTF_8);
+		List<BatchConvert.Result> results = BatchConvert.convertAll("@" + list, target, KERNEL, 1);
+		assertEquals(2, results.size());
+		for (BatchConvert.Result r : results) {
+			assertTrue(r.failure, r.failure.startsWith("Output path is outside"));
+		}
+		assertTrue(!Files.exists(temp.getRoot().toPath().resolve("x.txt")));
+		assertTrue(!Files.exists(temp.getRoot().toPath().resolve("y.txt")));
+	}
+
+	@Test
+	public void rejectsAbsoluteInputsWithTheSameName() throws IOException {
+		byte[] first = TestSupport.mojibake(1000);
+		byte[] second = TestSupport.mojibake(2000);
+		Path a = Files.write(temp.newFolder("a").toPath().resolve("app.log"), first);
+		Path b = Files.write(temp.newFolder("b").toPath().resolve("app.log"), second);
+		Path target = temp.newFolder("target").toPath();
+		Path list = temp.getRoot().toPath().resolve("files.txt");
+		Files.write(list, Arrays.asList(a.toAbsolutePath().toString(), b.toAbsolutePath().toString()),
+				StandardCharsets.UTF_8);
+		List<BatchConvert.Result> results = BatchConvert.convertAll("@" + list, target, KERNEL, 2);
+		assertNull(results.get(0).failure);
+		assertTrue(results.get(1).failure, results.get(1).failure.startsWith("Output path is the same as for"));
+		assertArrayEquals(MojibakeConverter.of("UTF-8", "ISO-8859-1", "GBK", "UTF-8").convert(first),
+				Files.readAllBytes(target.resolve("app.log")));
+	}
+
+	@Test
+	public void keepsTheManifestApartFromOutputs() throws IOException {
+		Path source = temp.newFolder("source").toPath();
+		Files.write(source.resolve("manifest.tsv"), TestSupport.mojibake(1000));
+		Files.write(source.resolve("app.log"), TestSupport.mojibake(1000));
+		Path target = temp.newFolder("target").toPath();
+		BatchConvert.main(new String[] {source.toString(), target.toString(), "UTF-8", "ISO-8859-1", "GBK", "UTF-8"});
+		List<String> manifest = Files.readAllLines(target.resolve("manifest.tsv"), StandardCharsets.UTF_8);
+		assertEquals(3, manifest.size());
+		assertTrue(manifest.get(0).startsWith("input\toutput\t"));
+		assertTrue(manifest.get(1), manifest.get(1).contains("\tOK\t"));
+		assertTrue(manifest.get(2), manifest.get(2).contains("\tFAILED\tOutput path is the manifest"));
+	}
+}
@@ -0,0 +1,155 @@
+package convert;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**<p>
+ * ConvertDaemon和ConvertClient的测试：令牌、--root限制、FILE请求的同一文件，以及STREAM的分块协议。</p>
+ * @author 何晶   He, Jing
+ */
+public class ConvertDaemonTest {
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private ConvertDaemon daemon;
+	private Thread server;
+	private Path root;
+	private ConvertClient client;
+
+	@Before
+	public void startDaemon() throws IOException {
+		root = temp.newFolder("root").toPath();
+		daemon = new ConvertDaemon(0, 2, temp.getRoot().toPath().resolve("daemon.token"), root);
+		server = new Thread(() -> {
+			try {
+				daemon.serve();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}, "convert-daemon-test");
+		server.start();
+		client = new ConvertClient(daemon.getPort(), ConvertDaemon.readToken(daemon.getTokenFile()));
+	}
+
+	@After
+	public void stopDaemon() throws IOException, InterruptedException {
+		daemon.stop();
+		server.join();
+	}
+
+	@Test
+	public void rejectsWrongToken() throws IOException {
+		Path input = write(root.resolve("in.txt"), TestSupport.mojibake(100));
+		ConvertClient stranger = new ConvertClient(daemon.getPort(), "not-the-token");
+		expectError("Invalid token", () -> stranger.convert(input.toString(), root.resolve("out.txt").toString(),
+				"UTF-8", "ISO-8859-1", "GBK", "UTF-8"));
+		expectError("Invalid token", stranger::stop);
+		assertTrue(!Files.exists(root.resolve("out.txt")));
+	}
+
+	@Test
+	public void convertsFilesInsideRoot() throws IOException {
+		byte[] data = TestSupport.mojibake(10000);
+		Path input = write(root.resolve("in.txt"), data);
+		Path output = root.resolve("out.txt");
+		client.convert(input.toString(), output.toString(), "UTF-8", "ISO-8859-1", "GBK", "UTF-8");
+		assertArrayEquals(MojibakeConverter.of("UTF-8", "ISO-8859-1", "GBK", "UTF-8").convert(data),
+				Files.readAllBytes(output));
+	}
+
+	@Test
+	public void rejectsPathsOutsideRoot() throws IOException {
+		Path outside = write(temp.newFolder("outside").toPath().resolve("secret.txt"), TestSupport.mojibake(100));
+		String escape = root.resolve("..").resolve("outside").resolve("secret.txt").toString();
+		expectError("outside", () -> client.convert(escape, root.resolve("out.txt").toString(),
+				"UTF-8", "ISO-8859-1", "GBK", "UTF-8"));
+		Path input = write(root.resolve("in.txt"), TestSupport.mojibake(100));
+		expectError("outside", () -> client.convert(input.toString(), outside.toString(),
+				"UTF-8", "ISO-8859-1", "GBK", "UTF-8"));
+		assertArrayEquals(TestSupport.mojibake(100), Files.readAllBytes(outside));
+	}
+
+	@Test
+	public void rejectsSameInputAndOutput() throws IOException {
+		byte[] data = TestSupport.mojibake(1000);
+		Path input = write(root.resolve("in.txt"), data);
+		expectError("same file", () -> client.convert(input.toString(), input.toString(),
+				"UTF-8", "ISO-8859-1", "GBK", "UTF-8"));
+		assertArrayEquals(data, Files.readAllBytes(input));
+	}
+
+	@Test
+	public void streamsInChunks() throws IOException {
+		//several chunks of 64KB
+		byte[] data = TestSupport.mojibake(300 << 10);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		client.convert(new ByteArrayInputStream(data), out, "UTF-8", "ISO-8859-1", "GBK", "UTF-8");
+		assertArrayEquals(MojibakeConverter.of("UTF-8", "ISO-8859-1", "GBK", "UTF-8").convert(data),
+				out.toByteArray());
+	}
+
+	@Test
+	public void reportsErrorAfterPartialStream() throws IOException, InterruptedException {
+		//a daemon that fails half way: one chunk, the end of the data, then ERROR
+		try (ServerSocket fake = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			Thread t = new Thread(() -> {
+				try (Socket s = fake.accept()) {
+					InputStream in = s.getInputStream();
+					while (in.read() != '\n');
+					DataOutputStream out = new DataOutputStream(s.getOutputStream());
+					out.write("OK\n".getBytes(StandardCharsets.UTF_8));
+					out.writeInt(5);
+					out.write("hello".getBytes(StandardCharsets.UTF_8));
+					out.writeInt(0);
+					out.write("ERROR IOException: disk full\n".getBytes(StandardCharsets.UTF_8));
+					out.flush();
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			t.start();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			expectError("disk full", () -> new ConvertClient(fake.getLocalPort(), "token").convert(
+					new ByteArrayInputStream(new byte[10]), out, "UTF-8", "ISO-8859-1", "GBK", "UTF-8"));
+			assertEquals("hello", new String(out.toByteArray(), StandardCharsets.UTF_8));
+			t.join();
+		}
+	}
+
+	private static Path write(Path path, byte[] data) throws IOException {
+		return Files.write(path, data);
+	}
+
+	private interface Request {
+		void run() throws IOException;
+	}
+
+	private static void expectError(String message, Request request) {
+		try {
+			request.run();
+			fail("Expected an error containing " + message);
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package convert;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**<p>
+ * IncrementalConvert的测试：续传、崩溃后截断输出、输入文件轮换，以及检查点的文件锁。</p>
+ * @author 何晶   He, Jing
+ */
+public class IncrementalConvertTest {
+	private static final int WINDOW_SIZE = 1000;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private Path input;
+	private Path output;
+
+	@Before
+	public void paths() {
+		input = temp.getRoot().toPath().resolve("app.log");
+		output = temp.getRoot().toPath().resolve("app.utf8.log");
+	}
+
+	@Test
+	public void resumesWhereTheLastRunStopped() throws IOException {
+		byte[] data = TestSupport.mojibake(20000);
+		Files.write(input, Arrays.copyOf(data, 7777));
+		convert(false);
+		Files.write(input, Arrays.copyOfRange(data, 7777, data.length), StandardOpenOption.APPEND);
+		assertEquals(data.length - 7777, convert());
+		assertEquals(0, convert());
+		assertArrayEquals(expected(data), Files.readAllBytes(output));
+	}
+
+	@Test
+	public void dropsOutputWrittenAfterTheCheckpoint() throws IOException {
+		byte[] data = TestSupport.mojibake(20000);
+		Files.write(input, Arrays.copyOf(data, 10000));
+		convert(false);
+		//a run that crashed after writing its output, before replacing the checkpoint
+		Files.write(output, "written by a crashed run".getBytes("UTF-8"), StandardOpenOption.APPEND);
+		Files.write(input, Arrays.copyOfRange(data, 10000, data.length), StandardOpenOption.APPEND);
+		convert();
+		assertArrayEquals(expected(data), Files.readAllBytes(output));
+	}
+
+	@Test
+	public void startsOverWhenTheInputIsRotated() throws IOException {
+		byte[] old = TestSupport.mojibake(10000);
+		Files.write(input, old);
+		convert();
+		//a new file, longer than the checkpoint offset, with different content
+		byte[] rotated = TestSupport.mojibake(15000);
+		rotated[0] = 'x';
+		Files.delete(input);
+		Files.write(input, rotated);
+		assertEquals(rotated.length, convert());
+		assertArrayEquals(expected(rotated), Files.readAllBytes(output));
+	}
+
+	@Test
+	public void refusesToRunTwice() throws IOException {
+		Files.write(input, TestSupport.mojibake(1000));
+		Path lockPath = temp.getRoot().toPath().resolve(output.getFileName() + IncrementalConvert.CHECKPOINT_SUFFIX
+				+ IncrementalConvert.LOCK_SUFFIX);
+		try (FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileLock lock = channel.lock()) {
+			convert();
+			fail("Expected the lock to be refused");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("is running"));
+		}
+		assertTrue(!Files.exists(output));
+		convert();
+		assertArrayEquals(expected(TestSupport.mojibake(1000)), Files.readAllBytes(output));
+	}
+
+	private long convert() throws IOException {
+		return convert(true);
+	}
+
+	/** @param flush	&nbsp;为false时，末尾不完整的部分留到下次运行，如同文件还在增长 */
+	private long convert(boolean flush) throws IOException {
+		return IncrementalConvert.convert(input.toString(), output.toString(),
+				TranscodeKernel.forChain("UTF-8", "ISO-8859-1", "GBK", "UTF-8"), WINDOW_SIZE, flush);
+	}
+
+	private static byte[] expected(byte[] data) {
+		return MojibakeConverter.of("UTF-8", "ISO-8859-1", "GBK", "UTF-8").convert(data);
+	}
+}
@@ -0,0 +1,61 @@
+package convert;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+import convert.TestSupport.DiscardChannel;
+import convert.TestSupport.ReplayChannel;
+
+/**<p>
+ * SegmentPipeline(UTF8ToANSI.segmentConvert())的测试。除了结果正确以外，还检查稳定运行时不分配对象：
+ * 先转换足够多的块让JIT编译，再用ThreadMXBean读取当前线程分配的字节数，
+ * 转换上万块之后分配的字节数应该基本不变。原来的segmentConvert()每块要分配八个对象，
+ * 每块都要分配几KB以上，这里会多出几十MB。</p>
+ * @author 何晶   He, Jing
+ */
+public class SegmentPipelineTest {
+	private static final int SEGMENT_SIZE = 4096;
+	//每次转换的数据为256块
+	private static final int DATA_SIZE = 256 * SEGMENT_SIZE;
+	private static final int WARM_UP_PASSES = 50;
+	private static final int MEASURED_PASSES = 50;
+
+	private static final TranscodeKernel KERNEL = TranscodeKernel.forChain("UTF-8", "ISO-8859-1", "GBK", "UTF-8");
+
+	@Test
+	public void convertsLikeTheConverter() throws IOException {
+		byte[] data = TestSupport.mojibake(4 << 10);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new SegmentPipeline(KERNEL, SEGMENT_SIZE).convert(new ReplayChannel(data), Channels.newChannel(out));
+		byte[] expected = MojibakeConverter.of("UTF-8", "ISO-8859-1", "GBK", "UTF-8").convert(data);
+		assertArrayEquals(expected, out.toByteArray());
+	}
+
+	@Test
+	public void steadyStateDoesNotAllocate() throws IOException {
+		com.sun.management.ThreadMXBean threads = TestSupport.allocationCounter();
+		long id = Thread.currentThread().getId();
+		SegmentPipeline pipeline = new SegmentPipeline(KERNEL, SEGMENT_SIZE);
+		ReplayChannel in = new ReplayChannel(TestSupport.mojibake(DATA_SIZE));
+		DiscardChannel out = new DiscardChannel();
+		for (int i = 0; i < WARM_UP_PASSES; i++) {
+			in.rewind();
+			pipeline.convert(in, out);
+		}
+		long before = threads.getThreadAllocatedBytes(id);
+		for (int i = 0; i < MEASURED_PASSES; i++) {
+			in.rewind();
+			pipeline.convert(in, out);
+		}
+		long allocated = threads.getThreadAllocatedBytes(id) - before;
+		long segments = (long) MEASURED_PASSES * (in.size() / SEGMENT_SIZE);
+		assertTrue("Allocated " + allocated + " bytes for " + segments + " segments",
+				allocated < TestSupport.MAX_STEADY_ALLOCATION);
+	}
+}
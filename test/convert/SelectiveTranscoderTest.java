@@ -0,0 +1,55 @@
+package convert;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+/**<p>
+ * SelectiveTranscoder的测试：正确的拉丁文单词必须原样输出，乱码仍然要修复。</p>
+ * @author 何晶   He, Jing
+ */
+public class SelectiveTranscoderTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	//单个拉丁字母加上后面的ASCII字母正好是GBK的一个常用字，例如ß+e为"遝"，Ü+b为"躡"
+	private static final String LATIN = "Straße Über Ångström Ærø Ñandú Müller café naïve Zürich Gödel façade "
+			+ "señor São Paulo Kraków résumé Øresund æble Ørsted Dvořák Éire Íslandi Þórsmörk fæðing crème brûlée "
+			+ "À la carte déjà vu Señorita ÉCOLE STRAßE\n";
+
+	@Test
+	public void keepsLatinWords() throws IOException {
+		assertEquals(LATIN, repair(LATIN));
+	}
+
+	@Test
+	public void repairsMojibakeNextToLatinWords() throws IOException {
+		String line = "货号43085\t湾仔码头大白菜猪肉水饺 720克/袋\tABC公司\n";
+		assertEquals(line + LATIN, repair(mojibake(line) + LATIN));
+	}
+
+	@Test
+	public void keepsCorrectChinese() throws IOException {
+		String line = "正确的中文文本，这是没有问题的内容。\n";
+		assertEquals(line + "720克/袋\n", repair(line + mojibake("720克/袋\n")));
+	}
+
+	/** 按GBK编码后当作Windows-1252解码，即默认的编码链制造的乱码。 */
+	private static String mojibake(String text) {
+		return new String(text.getBytes(Charset.forName("GBK")), Charset.forName("Windows-1252"));
+	}
+
+	private static String repair(String text) throws IOException {
+		SelectiveTranscoder transcoder = new SelectiveTranscoder("UTF-8", "Windows-1252", "GBK", "UTF-8");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		transcoder.convert(Channels.newChannel(new ByteArrayInputStream(text.getBytes(UTF8))),
+				Channels.newChannel(out), ByteBuffer.allocate(4096));
+		return new String(out.toByteArray(), UTF8);
+	}
+}
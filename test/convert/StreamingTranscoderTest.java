@@ -0,0 +1,47 @@
+package convert;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import convert.TestSupport.DiscardChannel;
+import convert.TestSupport.ReplayChannel;
+
+/**<p>
+ * StreamingTranscoder的测试，即twoTimeConvert.segmentConvert()的默认方式：
+ * 与segmentConvert()一样使用默认的缓冲区大小和segmentSize大小的读取缓冲区，
+ * 稳定运行时转换上万块，当前线程分配的字节数应该基本不变(见SegmentPipelineTest)。</p>
+ * @author 何晶   He, Jing
+ */
+public class StreamingTranscoderTest {
+	//每次转换的数据为256块
+	private static final int DATA_SIZE = 256 * twoTimeConvert.segmentSize;
+	private static final int WARM_UP_PASSES = 50;
+	private static final int MEASURED_PASSES = 50;
+
+	@Test
+	public void steadyStateDoesNotAllocate() throws IOException {
+		com.sun.management.ThreadMXBean threads = TestSupport.allocationCounter();
+		long id = Thread.currentThread().getId();
+		StreamingTranscoder transcoder = new StreamingTranscoder("UTF-8", "ISO-8859-1", "GBK", "UTF-8");
+		ByteBuffer buffer = ByteBuffer.allocate(twoTimeConvert.segmentSize);
+		ReplayChannel in = new ReplayChannel(TestSupport.mojibake(DATA_SIZE));
+		DiscardChannel out = new DiscardChannel();
+		for (int i = 0; i < WARM_UP_PASSES; i++) {
+			in.rewind();
+			transcoder.convert(in, out, buffer);
+		}
+		long before = threads.getThreadAllocatedBytes(id);
+		for (int i = 0; i < MEASURED_PASSES; i++) {
+			in.rewind();
+			transcoder.convert(in, out, buffer);
+		}
+		long allocated = threads.getThreadAllocatedBytes(id) - before;
+		long segments = (long) MEASURED_PASSES * (in.size() / twoTimeConvert.segmentSize);
+		assertTrue("Allocated " + allocated + " bytes for " + segments + " segments",
+				allocated < TestSupport.MAX_STEADY_ALLOCATION);
+	}
+}
@@ -0,0 +1,104 @@
+package convert;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**<p>
+ * 测试共用的数据和通道。</p>
+ * @author 何晶   He, Jing
+ */
+final class TestSupport {
+	//稳定运行时允许的分配：ThreadMXBean本身和偶尔的JIT去优化可能有少量分配，远小于每块一次分配
+	static final long MAX_STEADY_ALLOCATION = 256 << 10;
+
+	private TestSupport() {
+	}
+
+	/**
+	 * size字节的乱码：汉字和ASCII字符混合的一行，按GBK编码后当作ISO-8859-1解码，再按UTF-8编码，重复到size字节。
+	 * 最后一行可能不完整。编码链为UTF-8/ISO-8859-1/GBK/UTF-8。
+	 */
+	static byte[] mojibake(int size) {
+		String line = "货号43085\t湾仔码头大白菜猪肉水饺 720克/袋\t日销5\t月销42\n";
+		byte[] garbled = new String(line.getBytes(Charset.forName("GBK")), Charset.forName("ISO-8859-1"))
+				.getBytes(Charset.forName("UTF-8"));
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i += garbled.length) {
+			System.arraycopy(garbled, 0, data, i, Math.min(garbled.length, size - i));
+		}
+		return data;
+	}
+
+	/**
+	 * 当前线程分配的字节数的计数器。JVM不支持时跳过测试。
+	 */
+	static com.sun.management.ThreadMXBean allocationCounter() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		return threads;
+	}
+
+	/** 重复读取同一段数据，每次转换前rewind()。 */
+	static final class ReplayChannel implements ReadableByteChannel {
+		private final ByteBuffer data;
+
+		ReplayChannel(byte[] data) {
+			this.data = ByteBuffer.wrap(data);
+		}
+
+		void rewind() {
+			data.clear();
+		}
+
+		int size() {
+			return data.capacity();
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (!data.hasRemaining()) return -1;
+			int n = Math.min(dst.remaining(), data.remaining());
+			int limit = data.limit();
+			data.limit(data.position() + n);
+			dst.put(data);
+			data.limit(limit);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/** 丢弃所有写入的数据。 */
+	static final class DiscardChannel implements WritableByteChannel {
+		@Override
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}